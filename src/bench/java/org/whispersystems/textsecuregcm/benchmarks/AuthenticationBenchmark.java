@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credential verification, which runs on every authenticated request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthenticationBenchmark {
+
+  private static final String TOKEN = "a7b9c1d3e5f7091b3d5f7a9c";
+
+  private AuthenticationCredentials credentials;
+
+  @Setup
+  public void setup() {
+    this.credentials = new AuthenticationCredentials(TOKEN);
+  }
+
+  @Benchmark
+  public boolean verifyValid() {
+    return credentials.verify(TOKEN);
+  }
+
+  @Benchmark
+  public boolean verifyInvalid() {
+    return credentials.verify("b7b9c1d3e5f7091b3d5f7a9c");
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.textsecuregcm.entities.EncryptedOutgoingMessage;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of encrypting for a device: the original implementation
+ * (provider lookups and key decoding on every message) against the pooled
+ * cipher contexts, both producing the Base64 string for a device whose key
+ * is cached and writing raw bytes into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncryptedOutgoingMessageBenchmark {
+
+  @Param({"64", "1024", "16384"})
+  private int messageSize;
+
+  private OutgoingMessageSignal message;
+  private String                signalingKey;
+  private ByteBuffer            buffer;
+
+  @Setup
+  public void setup() {
+    byte[] body = new byte[messageSize];
+    byte[] key  = new byte[52];
+
+    new SecureRandom().nextBytes(body);
+    new SecureRandom().nextBytes(key);
+
+    this.message      = OutgoingMessageSignal.newBuilder()
+                                             .setType(OutgoingMessageSignal.Type.CIPHERTEXT_VALUE)
+                                             .setSource("+14152222222")
+                                             .setSourceDevice(1)
+                                             .setTimestamp(System.currentTimeMillis())
+                                             .setMessage(ByteString.copyFrom(body))
+                                             .build();
+    this.signalingKey = Base64.encodeBytes(key);
+    this.buffer       = ByteBuffer.allocate(EncryptedOutgoingMessage.getEncryptedSize(message));
+  }
+
+  @Benchmark
+  public String legacy() throws Exception {
+    byte[] signalingKeyBytes = Base64.decode(signalingKey);
+    byte[] cipherKeyBytes    = new byte[32];
+    System.arraycopy(signalingKeyBytes, 0, cipherKeyBytes, 0, cipherKeyBytes.length);
+    SecretKeySpec cipherKey = new SecretKeySpec(cipherKeyBytes, "AES");
+
+    signalingKeyBytes = Base64.decode(signalingKey);
+    byte[] macKeyBytes = new byte[20];
+    System.arraycopy(signalingKeyBytes, 32, macKeyBytes, 0, macKeyBytes.length);
+    SecretKeySpec macKey = new SecretKeySpec(macKeyBytes, "HmacSHA256");
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, cipherKey);
+
+    Mac hmac = Mac.getInstance("HmacSHA256");
+    hmac.init(macKey);
+    hmac.update(new byte[] {0x01});
+
+    byte[] ivBytes = cipher.getIV();
+    hmac.update(ivBytes);
+
+    byte[] ciphertext   = cipher.doFinal(message.toByteArray());
+    byte[] mac          = hmac.doFinal(ciphertext);
+    byte[] truncatedMac = new byte[10];
+    System.arraycopy(mac, 0, truncatedMac, 0, truncatedMac.length);
+
+    return Base64.encodeBytes(Util.combine(new byte[] {0x01}, ivBytes, ciphertext, truncatedMac));
+  }
+
+  @Benchmark
+  public String serialized() throws Exception {
+    return new EncryptedOutgoingMessage(message, "+14152222222", 1, signalingKey).serialize();
+  }
+
+  @Benchmark
+  public ByteBuffer buffered() throws Exception {
+    buffer.clear();
+    EncryptedOutgoingMessage.encrypt(message, signalingKey, buffer);
+    return buffer;
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.textsecuregcm.configuration.ApnConfiguration;
+import org.whispersystems.textsecuregcm.controllers.MessageController;
+import org.whispersystems.textsecuregcm.entities.IncomingMessageList;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.federation.FederatedClientManager;
+import org.whispersystems.textsecuregcm.limits.RateLimiter;
+import org.whispersystems.textsecuregcm.limits.RateLimiters;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
+import org.whispersystems.textsecuregcm.push.PushSender;
+import org.whispersystems.textsecuregcm.push.WebsocketSender;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A message send from request body to transport: JSON parsing, device list
+ * validation, encryption for each destination device and serialization of
+ * the PendingMessage.  Rate limiting, account lookup and the websocket
+ * transport are in-memory stand-ins, so nothing leaves the process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageControllerBenchmark {
+
+  private static final String SOURCE      = "+14151111111";
+  private static final String DESTINATION = "+14152222222";
+
+  private static final ObjectMapper mapper = SystemMapper.getMapper();
+
+  @Param({"1", "3"})
+  private int devices;
+
+  @Param({"0", "4"})
+  private int fanOutThreads;
+
+  @Param({"256", "4096"})
+  private int messageSize;
+
+  private MessageController controller;
+  private Account           source;
+  private String            body;
+
+  @Setup
+  public void setup() throws Exception {
+    SecureRandom  random   = new SecureRandom();
+    List<Device>  targets  = new LinkedList<>();
+    StringBuilder messages = new StringBuilder();
+    byte[]        content  = new byte[messageSize];
+
+    random.nextBytes(content);
+
+    for (int i=1;i<=devices;i++) {
+      byte[] signalingKey = new byte[52];
+      random.nextBytes(signalingKey);
+
+      targets.add(new Device(i, "token", "salt", Base64.encodeBytes(signalingKey),
+                             null, null, true, 1234 + i, null));
+
+      if (messages.length() > 0) messages.append(',');
+      messages.append("{\"type\":1,\"destinationDeviceId\":").append(i)
+              .append(",\"destinationRegistrationId\":").append(1234 + i)
+              .append(",\"body\":\"").append(Base64.encodeBytes(content)).append("\"}");
+    }
+
+    Account destination  = new Account(DESTINATION, false, targets);
+    Device  sourceDevice = new Device(1, "token", "salt", null, null, null, true, 1, null);
+
+    this.source = new Account(SOURCE, false, new LinkedList<Device>());
+    this.source.addDevice(sourceDevice);
+    this.source.setAuthenticatedDevice(sourceDevice);
+
+    this.body = "{\"timestamp\":" + System.currentTimeMillis() + ",\"messages\":[" + messages + "]}";
+
+    RateLimiters     rateLimiters     = mock(RateLimiters.class);
+    AccountsManager  accountsManager  = mock(AccountsManager.class);
+    ApnConfiguration apnConfiguration = mock(ApnConfiguration.class);
+
+    when(rateLimiters.getMessagesLimiter()).thenReturn(mock(RateLimiter.class));
+    when(accountsManager.get(DESTINATION)).thenReturn(Optional.of(destination));
+    when(apnConfiguration.getEnable()).thenReturn("false");
+
+    PushSender pushSender = new PushSender(apnConfiguration, null, null, null, new InMemoryWebsocketSender());
+
+    this.controller = new MessageController(rateLimiters, pushSender, accountsManager,
+                                            mock(FederatedClientManager.class),
+                                            new FanOutExecutor(fanOutThreads));
+  }
+
+  @Benchmark
+  public void sendMessage() throws Exception {
+    controller.sendMessage(source, DESTINATION, mapper.readValue(body, IncomingMessageList.class));
+  }
+
+  /**
+   * Does the serialization the real transport does before publishing,
+   * then drops the message.
+   */
+  private static class InMemoryWebsocketSender extends WebsocketSender {
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    public InMemoryWebsocketSender() {
+      super(null, null);
+    }
+
+    @Override
+    public void sendMessage(Account account, Device device, PendingMessage pendingMessage) {
+      try {
+        bytes.addAndGet(mapper.writeValueAsString(pendingMessage).length());
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
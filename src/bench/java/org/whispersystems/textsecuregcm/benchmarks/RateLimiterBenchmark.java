@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.benchmarks;
+
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.MemcachedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.limits.RateLimiter;
+import org.whispersystems.textsecuregcm.limits.RedisRateLimiter;
+import org.whispersystems.textsecuregcm.storage.LuaScript;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * The memcache and redis leaky buckets under contention on a single key.
+ *
+ * Unlike the other benchmarks this needs running servers, which default to
+ * localhost and can be changed with -p memcache=host:port -p redis=host.
+ * It's excluded from the default run, see the README.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class RateLimiterBenchmark {
+
+  @Param("localhost:11211")
+  private String memcache;
+
+  @Param("localhost")
+  private String redis;
+
+  private MemcachedClient memcachedClient;
+  private JedisPool       jedisPool;
+  private RateLimiter     memcacheLimiter;
+  private RateLimiter     redisLimiter;
+
+  @Setup
+  public void setup() throws IOException {
+    JedisPoolConfig poolConfig = new JedisPoolConfig();
+    poolConfig.setMaxActive(16);
+
+    this.memcachedClient = new MemcachedClient(AddrUtil.getAddresses(memcache));
+    this.jedisPool       = new JedisPool(poolConfig, redis);
+    this.memcacheLimiter = new RateLimiter(memcachedClient, "benchmark", Integer.MAX_VALUE, 1000);
+    this.redisLimiter    = new RedisRateLimiter(LuaScript.fromResource(jedisPool, RedisRateLimiter.SCRIPT),
+                                                "benchmark", Integer.MAX_VALUE, 1000);
+  }
+
+  @TearDown
+  public void teardown() {
+    memcachedClient.shutdown();
+    jedisPool.destroy();
+  }
+
+  @Benchmark
+  public void memcache() throws RateLimitExceededException {
+    memcacheLimiter.validate("+14152222222");
+  }
+
+  @Benchmark
+  public void redis() throws RateLimitExceededException {
+    redisLimiter.validate("+14152222222");
+  }
+}
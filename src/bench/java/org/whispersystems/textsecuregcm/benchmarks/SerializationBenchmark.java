@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.storage.StoredMessageCodec;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding work every message goes through at least once: Base64 of the
+ * ciphertext, the PendingMessage JSON that's published to websockets, and
+ * the envelope queued messages are stored in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+  private static final ObjectMapper mapper = SystemMapper.getMapper();
+
+  @Param({"256", "4096", "65536"})
+  private int size;
+
+  private byte[]         raw;
+  private String         encoded;
+  private PendingMessage pendingMessage;
+  private String         json;
+  private byte[]         stored;
+
+  @Setup
+  public void setup() throws Exception {
+    this.raw = new byte[size];
+    new SecureRandom().nextBytes(raw);
+
+    this.encoded        = Base64.encodeBytes(raw);
+    this.pendingMessage = new PendingMessage("+14152222222", System.currentTimeMillis(), false, encoded);
+    this.json           = mapper.writeValueAsString(pendingMessage);
+    this.stored         = StoredMessageCodec.encode(pendingMessage);
+  }
+
+  @Benchmark
+  public String base64Encode() {
+    return Base64.encodeBytes(raw);
+  }
+
+  @Benchmark
+  public byte[] base64Decode() throws Exception {
+    return Base64.decode(encoded);
+  }
+
+  @Benchmark
+  public String pendingMessageToJson() throws Exception {
+    return mapper.writeValueAsString(pendingMessage);
+  }
+
+  @Benchmark
+  public PendingMessage pendingMessageFromJson() throws Exception {
+    return mapper.readValue(json, PendingMessage.class);
+  }
+
+  @Benchmark
+  public PendingMessage pendingMessageJsonRoundTrip() throws Exception {
+    return mapper.readValue(mapper.writeValueAsString(pendingMessage), PendingMessage.class);
+  }
+
+  @Benchmark
+  public byte[] storedMessageEncode() throws Exception {
+    return StoredMessageCodec.encode(pendingMessage);
+  }
+
+  @Benchmark
+  public PendingMessage storedMessageDecode() throws Exception {
+    return StoredMessageCodec.decode(stored);
+  }
+}
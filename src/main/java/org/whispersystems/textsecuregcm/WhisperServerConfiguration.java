@@ -18,13 +18,19 @@
 package org.whispersystems.textsecuregcm;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import org.whispersystems.textsecuregcm.configuration.AccountCacheConfiguration;
 import org.whispersystems.textsecuregcm.configuration.ApnConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DeliveryQueueConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DirectoryConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DirectoryIndexConfiguration;
 import org.whispersystems.textsecuregcm.configuration.FederationConfiguration;
 import org.whispersystems.textsecuregcm.configuration.GcmConfiguration;
 import org.whispersystems.textsecuregcm.configuration.GraphiteConfiguration;
 import org.whispersystems.textsecuregcm.configuration.MemcacheConfiguration;
+import org.whispersystems.textsecuregcm.configuration.MessageStoreConfiguration;
 import org.whispersystems.textsecuregcm.configuration.MetricsConfiguration;
 import org.whispersystems.textsecuregcm.configuration.NexmoConfiguration;
+import org.whispersystems.textsecuregcm.configuration.PreKeysConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RedisConfiguration;
 import org.whispersystems.textsecuregcm.configuration.S3Configuration;
@@ -106,6 +112,30 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private WebsocketConfiguration websocket = new WebsocketConfiguration();
 
+  @Valid
+  @JsonProperty
+  private AccountCacheConfiguration accountCache = new AccountCacheConfiguration();
+
+  @Valid
+  @JsonProperty
+  private MessageStoreConfiguration messageStore = new MessageStoreConfiguration();
+
+  @Valid
+  @JsonProperty
+  private DeliveryQueueConfiguration deliveryQueue = new DeliveryQueueConfiguration();
+
+  @Valid
+  @JsonProperty
+  private DirectoryConfiguration directory = new DirectoryConfiguration();
+
+  @Valid
+  @JsonProperty
+  private DirectoryIndexConfiguration directoryIndex = new DirectoryIndexConfiguration();
+
+  @Valid
+  @JsonProperty
+  private PreKeysConfiguration preKeys = new PreKeysConfiguration();
+
   public WebsocketConfiguration getWebsocketConfiguration() {
     return websocket;
   }
@@ -165,4 +195,28 @@ public class WhisperServerConfiguration extends Configuration {
   public MetricsConfiguration getMetricsConfiguration() {
     return viz;
   }
+
+  public AccountCacheConfiguration getAccountCacheConfiguration() {
+    return accountCache;
+  }
+
+  public MessageStoreConfiguration getMessageStoreConfiguration() {
+    return messageStore;
+  }
+
+  public DeliveryQueueConfiguration getDeliveryQueueConfiguration() {
+    return deliveryQueue;
+  }
+
+  public DirectoryConfiguration getDirectoryConfiguration() {
+    return directory;
+  }
+
+  public DirectoryIndexConfiguration getDirectoryIndexConfiguration() {
+    return directoryIndex;
+  }
+
+  public PreKeysConfiguration getPreKeysConfiguration() {
+    return preKeys;
+  }
 }
@@ -28,7 +28,11 @@ import org.skife.jdbi.v2.DBI;
 import org.whispersystems.textsecuregcm.auth.AccountAuthenticator;
 import org.whispersystems.textsecuregcm.auth.FederatedPeerAuthenticator;
 import org.whispersystems.textsecuregcm.auth.MultiBasicAuthProvider;
+import org.whispersystems.textsecuregcm.configuration.AccountCacheConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DeliveryQueueConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DirectoryIndexConfiguration;
 import org.whispersystems.textsecuregcm.configuration.NexmoConfiguration;
+import org.whispersystems.textsecuregcm.configuration.PreKeysConfiguration;
 import org.whispersystems.textsecuregcm.controllers.AccountController;
 import org.whispersystems.textsecuregcm.controllers.AttachmentController;
 import org.whispersystems.textsecuregcm.controllers.DeviceController;
@@ -54,21 +58,29 @@ import org.whispersystems.textsecuregcm.providers.MemcachedClientFactory;
 import org.whispersystems.textsecuregcm.providers.RedisClientFactory;
 import org.whispersystems.textsecuregcm.providers.RedisHealthCheck;
 import org.whispersystems.textsecuregcm.push.APNSender;
+import org.whispersystems.textsecuregcm.push.DeliveryQueue;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
 import org.whispersystems.textsecuregcm.push.GCMSender;
+import org.whispersystems.textsecuregcm.push.PreKeyRefillSender;
 import org.whispersystems.textsecuregcm.push.PushSender;
 import org.whispersystems.textsecuregcm.push.WebsocketSender;
 import org.whispersystems.textsecuregcm.sms.NexmoSmsSender;
 import org.whispersystems.textsecuregcm.sms.SmsSender;
 import org.whispersystems.textsecuregcm.sms.TwilioSmsSender;
+import org.whispersystems.textsecuregcm.storage.AccountNearCache;
 import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.DirectoryIndex;
+import org.whispersystems.textsecuregcm.storage.DirectoryIndexUpdater;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
 import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
 import org.whispersystems.textsecuregcm.storage.PendingAccounts;
 import org.whispersystems.textsecuregcm.storage.PendingAccountsManager;
 import org.whispersystems.textsecuregcm.storage.PendingDevices;
 import org.whispersystems.textsecuregcm.storage.PendingDevicesManager;
+import org.whispersystems.textsecuregcm.storage.PreKeyRefillListener;
 import org.whispersystems.textsecuregcm.storage.PubSubManager;
 import org.whispersystems.textsecuregcm.storage.StoredMessages;
 import org.whispersystems.textsecuregcm.util.Constants;
@@ -133,13 +145,23 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     MemcachedClient memcachedClient = new MemcachedClientFactory(config.getMemcacheConfiguration()).getClient();
     JedisPool       redisClient     = new RedisClientFactory(config.getRedisConfiguration()).getRedisClientPool();
 
-    DirectoryManager       directory              = new DirectoryManager(redisClient);
-    PendingAccountsManager pendingAccountsManager = new PendingAccountsManager(pendingAccounts, memcachedClient);
-    PendingDevicesManager  pendingDevicesManager  = new PendingDevicesManager (pendingDevices, memcachedClient );
-    AccountsManager        accountsManager        = new AccountsManager(accounts, directory, memcachedClient);
-    FederatedClientManager federatedClientManager = new FederatedClientManager(config.getFederationConfiguration());
-    StoredMessages         storedMessages         = new StoredMessages(redisClient);
-    PubSubManager          pubSubManager          = new PubSubManager(redisClient);
+    PubSubManager              pubSubManager          = new PubSubManager(redisClient,
+                                                                          config.getWebsocketConfiguration().getPubSubShards(),
+                                                                          config.getWebsocketConfiguration().getPubSubDispatchThreads());
+    Optional<AccountNearCache> accountNearCache       = initializeAccountNearCache(config.getAccountCacheConfiguration(), pubSubManager);
+    DirectoryManager           directory              = new DirectoryManager(redisClient, config.getDirectoryConfiguration().isBinaryValues(),
+                                                                             config.getDirectoryIndexConfiguration().isEnabled());
+    Optional<DirectoryIndex>   directoryIndex         = initializeDirectoryIndex(config.getDirectoryIndexConfiguration(), directory, pubSubManager, environment);
+    PendingAccountsManager     pendingAccountsManager = new PendingAccountsManager(pendingAccounts, memcachedClient);
+    PendingDevicesManager      pendingDevicesManager  = new PendingDevicesManager (pendingDevices, memcachedClient );
+    AccountsManager            accountsManager        = new AccountsManager(accounts, directory, memcachedClient, accountNearCache);
+    FederatedClientManager     federatedClientManager = new FederatedClientManager(config.getFederationConfiguration());
+    StoredMessages             storedMessages         = new StoredMessages(redisClient,
+                                                                               config.getMessageStoreConfiguration().getBatchWindowMillis(),
+                                                                               config.getMessageStoreConfiguration().getMaxBatchSize());
+
+    environment.lifecycle().manage(pubSubManager);
+    environment.lifecycle().manage(storedMessages);
 
     APNSender apnSender = null;
 	
@@ -161,19 +183,28 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     }
     environment.lifecycle().manage(gcmSender);
 
+    Optional<DeliveryQueue> deliveryQueue = initializeDeliveryQueue(config.getDeliveryQueueConfiguration());
+
+    if (deliveryQueue.isPresent()) {
+      environment.lifecycle().manage(deliveryQueue.get());
+    }
+
     AccountAuthenticator     deviceAuthenticator    = new AccountAuthenticator(accountsManager);
-    RateLimiters             rateLimiters           = new RateLimiters(config.getLimitsConfiguration(), memcachedClient);
+    RateLimiters             rateLimiters           = new RateLimiters(config.getLimitsConfiguration(), memcachedClient, redisClient);
 
     TwilioSmsSender          twilioSmsSender        = new TwilioSmsSender(config.getTwilioConfiguration());
     Optional<NexmoSmsSender> nexmoSmsSender         = initializeNexmoSmsSender(config.getNexmoConfiguration());
     SmsSender                smsSender              = new SmsSender(twilioSmsSender, nexmoSmsSender, config.getTwilioConfiguration().isInternational());
     UrlSigner                urlSigner              = new UrlSigner(config.getS3Configuration());
-    PushSender               pushSender             = new PushSender(config.getApnConfiguration(), config.getBBPushConfiguration(), gcmSender, apnSender, websocketSender);
+    PushSender               pushSender             = new PushSender(config.getApnConfiguration(), config.getBBPushConfiguration(), gcmSender, apnSender, websocketSender, deliveryQueue);
+    FanOutExecutor           fanOutExecutor         = initializeFanOutExecutor(config.getDeliveryQueueConfiguration(), deliveryQueue);
+    KeysManager              keysManager            = initializeKeysManager(config.getPreKeysConfiguration(), keys, redisClient,
+                                                                            accountsManager, pushSender, environment);
 
     AttachmentController attachmentController = new AttachmentController(rateLimiters, federatedClientManager, urlSigner);
-    KeysControllerV1     keysControllerV1     = new KeysControllerV1(rateLimiters, keys, accountsManager, federatedClientManager);
-    KeysControllerV2     keysControllerV2     = new KeysControllerV2(rateLimiters, keys, accountsManager, federatedClientManager);
-    MessageController    messageController    = new MessageController(rateLimiters, pushSender, accountsManager, federatedClientManager);
+    KeysControllerV1     keysControllerV1     = new KeysControllerV1(rateLimiters, keysManager, accountsManager, federatedClientManager);
+    KeysControllerV2     keysControllerV2     = new KeysControllerV2(rateLimiters, keysManager, accountsManager, federatedClientManager);
+    MessageController    messageController    = new MessageController(rateLimiters, pushSender, accountsManager, federatedClientManager, fanOutExecutor);
 
     environment.jersey().register(new MultiBasicAuthProvider<>(new FederatedPeerAuthenticator(config.getFederationConfiguration()),
                                                                FederatedPeer.class,
@@ -182,10 +213,10 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     environment.jersey().register(new AccountController(pendingAccountsManager, accountsManager, rateLimiters, smsSender, config.getSmtpConfiguration(), storedMessages));
     environment.jersey().register(new DeviceController(pendingDevicesManager, accountsManager, rateLimiters));
-    environment.jersey().register(new DirectoryController(rateLimiters, directory));
+    environment.jersey().register(new DirectoryController(rateLimiters, directory, directoryIndex));
     environment.jersey().register(new FederationControllerV1(accountsManager, attachmentController, messageController, keysControllerV1));
     environment.jersey().register(new FederationControllerV2(accountsManager, attachmentController, messageController, keysControllerV2));
-    environment.jersey().register(new ReceiptController(accountsManager, federatedClientManager, pushSender));
+    environment.jersey().register(new ReceiptController(accountsManager, federatedClientManager, pushSender, fanOutExecutor));
     environment.jersey().register(attachmentController);
     environment.jersey().register(keysControllerV1);
     environment.jersey().register(keysControllerV2);
@@ -196,7 +227,10 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
                                                                           accountsManager,
                                                                           pushSender,
                                                                           storedMessages,
-                                                                          pubSubManager);
+                                                                          pubSubManager,
+                                                                          config.getWebsocketConfiguration().getPageSize(),
+                                                                          config.getWebsocketConfiguration().getMaxUnacknowledgedMessages(),
+                                                                          fanOutExecutor);
 
       ServletRegistration.Dynamic websocket = environment.servlets().addServlet("WebSocket", servlet);
       websocket.addMapping("/v1/websocket/*");
@@ -247,6 +281,71 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     }
   }
 
+  private Optional<AccountNearCache> initializeAccountNearCache(AccountCacheConfiguration configuration,
+                                                                PubSubManager pubSubManager)
+  {
+    if (!configuration.isEnabled()) {
+      return Optional.absent();
+    } else {
+      return Optional.of(new AccountNearCache(pubSubManager,
+                                              configuration.getMaxSize(),
+                                              configuration.getTtlSeconds()));
+    }
+  }
+
+  private Optional<DirectoryIndex> initializeDirectoryIndex(DirectoryIndexConfiguration configuration,
+                                                            DirectoryManager directory,
+                                                            PubSubManager pubSubManager,
+                                                            Environment environment)
+  {
+    if (!configuration.isEnabled()) {
+      return Optional.absent();
+    }
+
+    DirectoryIndex index = new DirectoryIndex();
+
+    environment.lifecycle().manage(new DirectoryIndexUpdater(index, directory, pubSubManager,
+                                                             configuration.getReloadDelaySeconds(),
+                                                             configuration.getReloadIntervalMinutes()));
+
+    return Optional.of(index);
+  }
+
+  private KeysManager initializeKeysManager(PreKeysConfiguration configuration, Keys keys, JedisPool redisClient,
+                                            AccountsManager accountsManager, PushSender pushSender,
+                                            Environment environment)
+  {
+    if (configuration.getRefillThreshold() == 0) {
+      return new KeysManager(keys, redisClient);
+    }
+
+    PreKeyRefillSender refillSender = new PreKeyRefillSender(accountsManager, pushSender);
+    environment.lifecycle().manage(refillSender);
+
+    return new KeysManager(keys, redisClient, Optional.<PreKeyRefillListener>of(refillSender),
+                           configuration.getRefillThreshold());
+  }
+
+  private Optional<DeliveryQueue> initializeDeliveryQueue(DeliveryQueueConfiguration configuration) {
+    if (configuration.getThreads() == 0) {
+      return Optional.absent();
+    } else {
+      return Optional.of(new DeliveryQueue(configuration.getThreads(), configuration.getQueueSize()));
+    }
+  }
+
+  private FanOutExecutor initializeFanOutExecutor(DeliveryQueueConfiguration configuration,
+                                                  Optional<DeliveryQueue> deliveryQueue)
+  {
+    // A queued send returns as soon as it's queued, so there's nothing to
+    // gain from spreading a request's devices across threads.
+    if (deliveryQueue.isPresent()) {
+      return new FanOutExecutor(0);
+    } else {
+      return new FanOutExecutor(configuration.getFanOutThreads());
+    }
+  }
+
   public static void main(String[] args) throws Exception {
     new WhisperServerService().run(args);
   }
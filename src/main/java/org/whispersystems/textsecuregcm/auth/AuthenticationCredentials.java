@@ -17,17 +17,28 @@
 package org.whispersystems.textsecuregcm.auth;
 
 import org.apache.commons.codec.binary.Hex;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 public class AuthenticationCredentials {
 
-  private final Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
+  private static final Charset UTF8       = Charset.forName("UTF-8");
+  private static final char[]  HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7',
+                                             '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
 
   private final String hashedAuthenticationToken;
   private final String salt;
@@ -55,22 +66,43 @@ public class AuthenticationCredentials {
   }
 
   public boolean verify(String authenticationToken) {
-    String theirValue = getHashedValue(salt, authenticationToken);
-
-    logger.debug("Comparing: " + theirValue + " , " + this.hashedAuthenticationToken);
+    if (hashedAuthenticationToken == null || salt == null || authenticationToken == null) {
+      return false;
+    }
 
-    return theirValue.equals(this.hashedAuthenticationToken);
+    return isEqualHex(getHashedBytes(salt, authenticationToken), hashedAuthenticationToken);
   }
 
   private static String getHashedValue(String salt, String token) {
-    Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
-    logger.debug("Getting hashed token: " + salt + " , " + token);
+    return new String(Hex.encodeHex(getHashedBytes(salt, token)));
+  }
 
-    try {
-      return new String(Hex.encodeHex(MessageDigest.getInstance("SHA1").digest((salt + token).getBytes("UTF-8"))));
-    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-      throw new AssertionError(e);
+  private static byte[] getHashedBytes(String salt, String token) {
+    MessageDigest digest = DIGEST.get();
+    digest.reset();
+    digest.update(salt.getBytes(UTF8));
+    digest.update(token.getBytes(UTF8));
+
+    return digest.digest();
+  }
+
+  /**
+   * Compares a raw digest against its lowercase hex encoding without building
+   * the intermediate string, and without short-circuiting on the first mismatch.
+   */
+  private static boolean isEqualHex(byte[] digest, String hex) {
+    if (hex.length() != digest.length * 2) {
+      return false;
     }
+
+    int difference = 0;
+
+    for (int i=0;i<digest.length;i++) {
+      difference |= hex.charAt(2 * i)     ^ HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+      difference |= hex.charAt(2 * i + 1) ^ HEX_DIGITS[digest[i] & 0x0f];
+    }
+
+    return difference == 0;
   }
 
 }
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DeliveryQueueConfiguration {
+
+  /**
+   * Number of delivery workers.  Zero delivers on the request thread.
+   */
+  @Min(0)
+  @JsonProperty
+  private int threads = 0;
+
+  /**
+   * Total number of messages that can be waiting for a worker before
+   * senders are turned away.
+   */
+  @Min(1)
+  @JsonProperty
+  private int queueSize = 10000;
+
+  /**
+   * Threads shared by requests to send to each of an account's devices
+   * in parallel.  Zero sends to them one at a time.  Only used when
+   * delivery isn't queued.
+   */
+  @Min(0)
+  @JsonProperty
+  private int fanOutThreads = 16;
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public int getFanOutThreads() {
+    return fanOutThreads;
+  }
+}
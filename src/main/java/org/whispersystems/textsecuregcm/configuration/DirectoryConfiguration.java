@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DirectoryConfiguration {
+
+  /**
+   * Write directory entries in the compact binary form.  Both forms are
+   * always read, so this should be turned on once every node is running
+   * a version that can read it.
+   */
+  @JsonProperty
+  private boolean binaryValues = false;
+
+  /**
+   * A full rebuild works through the accounts table in ranges of this
+   * many ids, spread across rebuildThreads workers.  Completed ranges are
+   * recorded so an interrupted rebuild picks up where it left off.
+   */
+  @Min(1)
+  @JsonProperty
+  private int rebuildChunkSize = 10000;
+
+  @Min(1)
+  @JsonProperty
+  private int rebuildThreads = 4;
+
+  /**
+   * Directory writes per redis pipeline before it's flushed.
+   */
+  @Min(1)
+  @JsonProperty
+  private int rebuildFlushSize = 1000;
+
+  /**
+   * Sequence numbers are assigned when an account is written, not when
+   * the write commits, so an incremental update re-scans this many
+   * sequence values behind its last mark to pick up late commits.
+   */
+  @Min(0)
+  @JsonProperty
+  private int syncLagWindow = 10000;
+
+  public boolean isBinaryValues() {
+    return binaryValues;
+  }
+
+  public int getRebuildChunkSize() {
+    return rebuildChunkSize;
+  }
+
+  public int getRebuildThreads() {
+    return rebuildThreads;
+  }
+
+  public int getRebuildFlushSize() {
+    return rebuildFlushSize;
+  }
+
+  public int getSyncLagWindow() {
+    return syncLagWindow;
+  }
+}
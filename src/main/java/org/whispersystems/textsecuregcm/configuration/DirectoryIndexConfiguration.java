@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DirectoryIndexConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  /**
+   * How long to wait after a batch directory update before reloading,
+   * so a run of batches only causes one reload.
+   */
+  @Min(0)
+  @JsonProperty
+  private int reloadDelaySeconds = 30;
+
+  @Min(1)
+  @JsonProperty
+  private int reloadIntervalMinutes = 60;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getReloadDelaySeconds() {
+    return reloadDelaySeconds;
+  }
+
+  public int getReloadIntervalMinutes() {
+    return reloadIntervalMinutes;
+  }
+}
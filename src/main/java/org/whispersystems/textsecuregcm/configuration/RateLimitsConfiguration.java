@@ -17,6 +17,7 @@
  */
 package org.whispersystems.textsecuregcm.configuration;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class RateLimitsConfiguration {
@@ -91,6 +92,15 @@ public class RateLimitsConfiguration {
     return verifyNumber;
   }
 
+  public enum Store {
+    MEMCACHE, REDIS;
+
+    @JsonCreator
+    public static Store fromString(String value) {
+      return valueOf(value.toUpperCase());
+    }
+  }
+
   public static class RateLimitConfiguration {
     @JsonProperty
     private int bucketSize;
@@ -98,6 +108,26 @@ public class RateLimitsConfiguration {
     @JsonProperty
     private double leakRatePerMinute;
 
+    /**
+     * Where buckets are kept.  Redis buckets are checked and updated
+     * atomically in one round trip.
+     */
+    @JsonProperty
+    private Store store = Store.MEMCACHE;
+
+    /**
+     * Permits each node takes from the store at a time and hands out from
+     * memory.  A node holds fewer than this many unspent permits per key,
+     * so it's also how far early a user can be limited per node; they go
+     * back to the store when the slice expires.  Zero checks the store on
+     * every request.
+     */
+    @JsonProperty
+    private int localSlice = 0;
+
+    @JsonProperty
+    private int localSliceTtlSeconds = 10;
+
     public RateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
       this.bucketSize        = bucketSize;
       this.leakRatePerMinute = leakRatePerMinute;
@@ -112,5 +142,17 @@ public class RateLimitsConfiguration {
     public double getLeakRatePerMinute() {
       return leakRatePerMinute;
     }
+
+    public Store getStore() {
+      return store;
+    }
+
+    public int getLocalSlice() {
+      return localSlice;
+    }
+
+    public int getLocalSliceTtlSeconds() {
+      return localSliceTtlSeconds;
+    }
   }
 }
@@ -2,13 +2,56 @@ package org.whispersystems.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.validation.constraints.Min;
+
 public class WebsocketConfiguration {
 
   @JsonProperty
   private boolean enabled = false;
 
+  @Min(1)
+  @JsonProperty
+  private int pageSize = 50;
+
+  @Min(1)
+  @JsonProperty
+  private int maxUnacknowledgedMessages = 200;
+
+  /**
+   * Number of redis subscriber connections channels are spread across.
+   * Each one holds a connection from the redis pool for the life of the
+   * process.
+   */
+  @Min(1)
+  @JsonProperty
+  private int pubSubShards = 1;
+
+  /**
+   * Number of threads delivering pub/sub messages to their listeners.
+   * Zero delivers directly on the subscriber connection threads.
+   */
+  @Min(0)
+  @JsonProperty
+  private int pubSubDispatchThreads = 8;
+
   public boolean isEnabled() {
     return enabled;
   }
 
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public int getMaxUnacknowledgedMessages() {
+    return maxUnacknowledgedMessages;
+  }
+
+  public int getPubSubShards() {
+    return pubSubShards;
+  }
+
+  public int getPubSubDispatchThreads() {
+    return pubSubDispatchThreads;
+  }
+
 }
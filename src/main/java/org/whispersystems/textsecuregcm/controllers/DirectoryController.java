@@ -20,6 +20,11 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,9 +33,11 @@ import org.whispersystems.textsecuregcm.entities.ClientContactTokens;
 import org.whispersystems.textsecuregcm.entities.ClientContacts;
 import org.whispersystems.textsecuregcm.limits.RateLimiters;
 import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.DirectoryIndex;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
 import org.whispersystems.textsecuregcm.util.Base64;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -42,7 +49,11 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -52,16 +63,27 @@ import io.dropwizard.auth.Auth;
 @Path("/v1/directory")
 public class DirectoryController {
 
+  private static final int          STREAM_CHUNK_SIZE = 1000;
+  private static final ObjectMapper mapper            = SystemMapper.getMapper();
+
   private final Logger         logger            = LoggerFactory.getLogger(DirectoryController.class);
   private final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Histogram      contactsHistogram = metricRegistry.histogram(name(getClass(), "contacts"));
 
-  private final RateLimiters     rateLimiters;
-  private final DirectoryManager directory;
+  private final RateLimiters             rateLimiters;
+  private final DirectoryManager         directory;
+  private final Optional<DirectoryIndex> directoryIndex;
 
   public DirectoryController(RateLimiters rateLimiters, DirectoryManager directory) {
-    this.directory    = directory;
-    this.rateLimiters = rateLimiters;
+    this(rateLimiters, directory, Optional.<DirectoryIndex>absent());
+  }
+
+  public DirectoryController(RateLimiters rateLimiters, DirectoryManager directory,
+                             Optional<DirectoryIndex> directoryIndex)
+  {
+    this.directory      = directory;
+    this.rateLimiters   = rateLimiters;
+    this.directoryIndex = directoryIndex;
   }
 
   @Timed
@@ -74,8 +96,11 @@ public class DirectoryController {
     rateLimiters.getContactsLimiter().validate(account.getNumber());
 
     try {
-      Optional<ClientContact> contact = directory.get(Base64.decodeWithoutPadding(token));
-      
+      byte[]                  decoded = Base64.decodeWithoutPadding(token);
+      Optional<ClientContact> contact;
+
+      if (isIndexLoaded()) contact = directoryIndex.get().get(decoded);
+      else                 contact = directory.get(decoded);
 
       if (contact.isPresent()) return Response.ok().entity(contact.get()).build();
       else                     return Response.status(404).build();
@@ -105,12 +130,138 @@ public class DirectoryController {
 
       }
 
-      List<ClientContact> intersection = directory.get(tokens);
-
-      return new ClientContacts(intersection);
+      return new ClientContacts(getIntersection(tokens));
     } catch (IOException e) {
       logger.info("Bad token", e);
       throw new WebApplicationException(Response.status(400).build());
     }
   }
+
+  /**
+   * The same intersection as {@link #getContactIntersection}, but tokens
+   * are parsed, rate limited and looked up STREAM_CHUNK_SIZE at a time, and
+   * each chunk's matches are written out before the next is read.  Memory
+   * use doesn't grow with the size of the upload.
+   *
+   * Problems found in the first chunk get the usual status codes.  After
+   * that the response has started, so a later chunk that's malformed or
+   * over the rate limit ends the response with the JSON unterminated,
+   * where it can't be mistaken for a complete answer.
+   */
+  @Timed
+  @PUT
+  @Path("/tokens/stream")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Consumes(MediaType.APPLICATION_JSON)
+  public StreamingOutput getContactIntersectionStream(@Auth final Account account, InputStream body)
+      throws RateLimitExceededException
+  {
+    final TokenReader  reader;
+    final List<byte[]> first;
+
+    try {
+      reader = new TokenReader(body);
+      first  = reader.read(STREAM_CHUNK_SIZE);
+    } catch (IOException e) {
+      logger.info("Bad token stream", e);
+      throw new WebApplicationException(Response.status(400).build());
+    }
+
+    rateLimiters.getContactsLimiter().validate(account.getNumber(), first.size());
+
+    return new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        JsonGenerator generator = mapper.getFactory().createGenerator(output);
+        List<byte[]>  chunk     = first;
+        int           total     = 0;
+
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("contacts");
+
+        while (!chunk.isEmpty()) {
+          for (ClientContact contact : getIntersection(chunk)) {
+            mapper.writeValue(generator, contact);
+          }
+
+          generator.flush();
+
+          total += chunk.size();
+          chunk  = reader.read(STREAM_CHUNK_SIZE);
+
+          try {
+            if (!chunk.isEmpty()) {
+              rateLimiters.getContactsLimiter().validate(account.getNumber(), chunk.size());
+            }
+          } catch (RateLimitExceededException e) {
+            throw new IOException(e);
+          }
+        }
+
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+
+        contactsHistogram.update(total);
+      }
+    };
+  }
+
+  private List<ClientContact> getIntersection(List<byte[]> tokens) {
+    if (isIndexLoaded()) return directoryIndex.get().get(tokens);
+    else                 return directory.get(tokens);
+  }
+
+  private boolean isIndexLoaded() {
+    return directoryIndex.isPresent() && directoryIndex.get().isLoaded();
+  }
+
+  /**
+   * Pulls tokens out of a {"contacts": [...]} body without reading the
+   * rest of it.
+   */
+  private static class TokenReader {
+
+    private final JsonParser parser;
+    private boolean finished = false;
+
+    public TokenReader(InputStream input) throws IOException {
+      this.parser = mapper.getFactory().createParser(input);
+
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected an object", parser.getCurrentLocation());
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String    field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+
+        if ("contacts".equals(field) && value == JsonToken.START_ARRAY) {
+          return;
+        }
+
+        parser.skipChildren();
+      }
+
+      throw new JsonParseException("Missing contacts", parser.getCurrentLocation());
+    }
+
+    public List<byte[]> read(int limit) throws IOException {
+      List<byte[]> tokens = new ArrayList<>();
+
+      while (!finished && tokens.size() < limit) {
+        JsonToken token = parser.nextToken();
+
+        if (token == JsonToken.END_ARRAY) {
+          finished = true;
+        } else if (token == JsonToken.VALUE_STRING) {
+          tokens.add(Base64.decodeWithoutPadding(parser.getText()));
+        } else {
+          throw new JsonParseException("Expected a token", parser.getCurrentLocation());
+        }
+      }
+
+      return tokens;
+    }
+  }
 }
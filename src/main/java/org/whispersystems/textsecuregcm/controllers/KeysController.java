@@ -25,25 +25,27 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeyRecord;
-import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.dropwizard.auth.Auth;
 
 public class KeysController {
 
   protected final RateLimiters           rateLimiters;
-  protected final Keys                   keys;
+  protected final KeysManager            keys;
   protected final AccountsManager        accounts;
   protected final FederatedClientManager federatedClientManager;
 
-  public KeysController(RateLimiters rateLimiters, Keys keys, AccountsManager accounts,
+  public KeysController(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts,
                         FederatedClientManager federatedClientManager)
   {
     this.rateLimiters           = rateLimiters;
@@ -96,18 +98,29 @@ public class KeysController {
 
 
   public static class TargetKeys {
-    private final Account         destination;
+    private final Account                   destination;
     private final Optional<List<KeyRecord>> keys;
+    private final Map<Long, KeyRecord>      keysByDevice = new HashMap<>();
 
     public TargetKeys(Account destination, Optional<List<KeyRecord>> keys) {
       this.destination = destination;
       this.keys        = keys;
+
+      if (keys.isPresent()) {
+        for (KeyRecord key : keys.get()) {
+          keysByDevice.put(key.getDeviceId(), key);
+        }
+      }
     }
 
     public Optional<List<KeyRecord>> getKeys() {
       return keys;
     }
 
+    public Optional<KeyRecord> getKey(long deviceId) {
+      return Optional.fromNullable(keysByDevice.get(deviceId));
+    }
+
     public Account getDestination() {
       return destination;
     }
@@ -30,7 +30,7 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeyRecord;
-import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -53,7 +53,7 @@ public class KeysControllerV1 extends KeysController {
 
   private final Logger logger = LoggerFactory.getLogger(KeysControllerV1.class);
 
-  public KeysControllerV1(RateLimiters rateLimiters, Keys keys, AccountsManager accounts,
+  public KeysControllerV1(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts,
                           FederatedClientManager federatedClientManager)
   {
     super(rateLimiters, keys, accounts, federatedClientManager);
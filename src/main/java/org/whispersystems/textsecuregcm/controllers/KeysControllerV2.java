@@ -31,7 +31,7 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeyRecord;
-import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -52,7 +52,7 @@ import io.dropwizard.auth.Auth;
 @Path("/v2/keys")
 public class KeysControllerV2 extends KeysController {
 
-  public KeysControllerV2(RateLimiters rateLimiters, Keys keys, AccountsManager accounts,
+  public KeysControllerV2(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts,
                           FederatedClientManager federatedClientManager)
   {
     super(rateLimiters, keys, accounts, federatedClientManager);
@@ -108,15 +108,12 @@ public class KeysControllerV2 extends KeysController {
 
       for (Device device : destination.getDevices()) {
         if (device.isActive() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
-          SignedPreKey signedPreKey = device.getSignedPreKey();
-          PreKeyV2     preKey       = null;
-
-          if (targetKeys.getKeys().isPresent()) {
-            for (KeyRecord keyRecord : targetKeys.getKeys().get()) {
-              if (keyRecord.getDeviceId() == device.getId()) {
-                preKey = new PreKeyV2(keyRecord.getKeyId(), keyRecord.getPublicKey());
-              }
-            }
+          SignedPreKey        signedPreKey = device.getSignedPreKey();
+          Optional<KeyRecord> keyRecord    = targetKeys.getKey(device.getId());
+          PreKeyV2            preKey       = null;
+
+          if (keyRecord.isPresent()) {
+            preKey = new PreKeyV2(keyRecord.get().getKeyId(), keyRecord.get().getPublicKey());
           }
 
           if (signedPreKey != null || preKey != null) {
@@ -18,6 +18,7 @@ package org.whispersystems.textsecuregcm.controllers;
 
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,8 @@ import org.whispersystems.textsecuregcm.federation.FederatedClient;
 import org.whispersystems.textsecuregcm.federation.FederatedClientManager;
 import org.whispersystems.textsecuregcm.federation.NoSuchPeerException;
 import org.whispersystems.textsecuregcm.limits.RateLimiters;
+import org.whispersystems.textsecuregcm.push.DeliveryQueueFullException;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
 import org.whispersystems.textsecuregcm.push.NotPushRegisteredException;
 import org.whispersystems.textsecuregcm.push.PushSender;
 import org.whispersystems.textsecuregcm.push.TransientPushFailureException;
@@ -51,9 +54,13 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import io.dropwizard.auth.Auth;
 
@@ -66,16 +73,27 @@ public class MessageController {
   private final PushSender             pushSender;
   private final FederatedClientManager federatedClientManager;
   private final AccountsManager        accountsManager;
+  private final FanOutExecutor         fanOutExecutor;
 
   public MessageController(RateLimiters rateLimiters,
                            PushSender pushSender,
                            AccountsManager accountsManager,
                            FederatedClientManager federatedClientManager)
+  {
+    this(rateLimiters, pushSender, accountsManager, federatedClientManager, new FanOutExecutor());
+  }
+
+  public MessageController(RateLimiters rateLimiters,
+                           PushSender pushSender,
+                           AccountsManager accountsManager,
+                           FederatedClientManager federatedClientManager,
+                           FanOutExecutor fanOutExecutor)
   {
     this.rateLimiters           = rateLimiters;
     this.pushSender             = pushSender;
     this.accountsManager        = accountsManager;
     this.federatedClientManager = federatedClientManager;
+    this.fanOutExecutor         = fanOutExecutor;
   }
 
   @Timed
@@ -128,23 +146,78 @@ public class MessageController {
     }
   }
 
-  private void sendLocalMessage(Account source,
+  private void sendLocalMessage(final Account source,
                                 String destinationName,
-                                IncomingMessageList messages)
+                                final IncomingMessageList messages)
       throws NoSuchUserException, MismatchedDevicesException, IOException, StaleDevicesException
   {
-    Account destination = getDestinationAccount(destinationName);
+    final Account destination = getDestinationAccount(destinationName);
 
     validateCompleteDeviceList(destination, messages.getMessages());
     validateRegistrationIds(destination, messages.getMessages());
 
+    if (pushSender.isQueued()) {
+      queueLocalMessages(source, destination, messages);
+      return;
+    }
+
+    List<Callable<Void>> sends = new LinkedList<>();
+
+    for (final IncomingMessage incomingMessage : messages.getMessages()) {
+      final Optional<Device> destinationDevice = destination.getDevice(incomingMessage.getDestinationDeviceId());
+
+      if (destinationDevice.isPresent()) {
+        sends.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            sendLocalMessage(source, destination, destinationDevice.get(), messages.getTimestamp(), incomingMessage);
+            return null;
+          }
+        });
+      }
+    }
+
+    try {
+      fanOutExecutor.invokeAll(sends);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), NoSuchUserException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Queues the message for every destination device at once, so a full
+   * delivery queue turns the whole request away before any device has
+   * been sent its copy.
+   */
+  private void queueLocalMessages(Account source, Account destination, IncomingMessageList messages)
+      throws NoSuchUserException, IOException
+  {
+    Map<Device, OutgoingMessageSignal> outgoingMessages = new LinkedHashMap<>();
+
     for (IncomingMessage incomingMessage : messages.getMessages()) {
       Optional<Device> destinationDevice = destination.getDevice(incomingMessage.getDestinationDeviceId());
 
-      if (destinationDevice.isPresent()) {
-        sendLocalMessage(source, destination, destinationDevice.get(), messages.getTimestamp(), incomingMessage);
+      if (!destinationDevice.isPresent()) {
+        continue;
+      }
+
+      if (pushSender.isDeliverable(destinationDevice.get())) {
+        outgoingMessages.put(destinationDevice.get(),
+                             getOutgoingMessage(source, messages.getTimestamp(), incomingMessage));
+      } else if (destinationDevice.get().isMaster()) {
+        throw new NoSuchUserException(destination.getNumber());
+      } else {
+        logger.debug("Not registered: " + destination.getNumber() + "." + destinationDevice.get().getId());
       }
     }
+
+    try {
+      pushSender.sendMessages(destination, outgoingMessages);
+    } catch (DeliveryQueueFullException e) {
+      throw new IOException(e);
+    }
   }
 
   private void sendLocalMessage(Account source,
@@ -155,23 +228,8 @@ public class MessageController {
       throws NoSuchUserException, IOException
   {
     try {
-      Optional<byte[]>              messageBody    = getMessageBody(incomingMessage);
-      OutgoingMessageSignal.Builder messageBuilder = OutgoingMessageSignal.newBuilder();
-
-      messageBuilder.setType(incomingMessage.getType())
-                    .setSource(source.getNumber())
-                    .setTimestamp(timestamp == 0 ? System.currentTimeMillis() : timestamp)
-                    .setSourceDevice((int)source.getAuthenticatedDevice().get().getId());
-
-      if (messageBody.isPresent()) {
-        messageBuilder.setMessage(ByteString.copyFrom(messageBody.get()));
-      }
-
-      if (source.getRelay().isPresent()) {
-        messageBuilder.setRelay(source.getRelay().get());
-      }
-
-      pushSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build());
+      pushSender.sendMessage(destinationAccount, destinationDevice,
+                             getOutgoingMessage(source, timestamp, incomingMessage));
     } catch (NotPushRegisteredException e) {
       if (destinationDevice.isMaster()) throw new NoSuchUserException(e);
       else                              logger.debug("Not registered", e);
@@ -181,6 +239,26 @@ public class MessageController {
     }
   }
 
+  private OutgoingMessageSignal getOutgoingMessage(Account source, long timestamp, IncomingMessage incomingMessage) {
+    Optional<byte[]>              messageBody    = getMessageBody(incomingMessage);
+    OutgoingMessageSignal.Builder messageBuilder = OutgoingMessageSignal.newBuilder();
+
+    messageBuilder.setType(incomingMessage.getType())
+                  .setSource(source.getNumber())
+                  .setTimestamp(timestamp == 0 ? System.currentTimeMillis() : timestamp)
+                  .setSourceDevice((int)source.getAuthenticatedDevice().get().getId());
+
+    if (messageBody.isPresent()) {
+      messageBuilder.setMessage(ByteString.copyFrom(messageBody.get()));
+    }
+
+    if (source.getRelay().isPresent()) {
+      messageBuilder.setRelay(source.getRelay().get());
+    }
+
+    return messageBuilder.build();
+  }
+
   private void sendRelayMessage(Account source,
                                 String destinationName,
                                 IncomingMessageList messages)
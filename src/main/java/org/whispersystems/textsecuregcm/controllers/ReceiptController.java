@@ -2,8 +2,10 @@ package org.whispersystems.textsecuregcm.controllers;
 
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import org.whispersystems.textsecuregcm.federation.FederatedClientManager;
 import org.whispersystems.textsecuregcm.federation.NoSuchPeerException;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
 import org.whispersystems.textsecuregcm.push.NotPushRegisteredException;
 import org.whispersystems.textsecuregcm.push.PushSender;
 import org.whispersystems.textsecuregcm.push.TransientPushFailureException;
@@ -18,7 +20,10 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import io.dropwizard.auth.Auth;
 import static org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
@@ -29,14 +34,24 @@ public class ReceiptController {
   private final AccountsManager        accountManager;
   private final PushSender             pushSender;
   private final FederatedClientManager federatedClientManager;
+  private final FanOutExecutor         fanOutExecutor;
 
   public ReceiptController(AccountsManager accountManager,
                            FederatedClientManager federatedClientManager,
                            PushSender pushSender)
+  {
+    this(accountManager, federatedClientManager, pushSender, new FanOutExecutor());
+  }
+
+  public ReceiptController(AccountsManager accountManager,
+                           FederatedClientManager federatedClientManager,
+                           PushSender pushSender,
+                           FanOutExecutor fanOutExecutor)
   {
     this.accountManager         = accountManager;
     this.federatedClientManager = federatedClientManager;
     this.pushSender             = pushSender;
+    this.fanOutExecutor         = fanOutExecutor;
   }
 
   @Timed
@@ -74,8 +89,8 @@ public class ReceiptController {
   private void sendDirectReceipt(Account source, String destination, long messageId)
       throws NotPushRegisteredException, TransientPushFailureException, NoSuchUserException
   {
-    Account      destinationAccount = getDestinationAccount(destination);
-    List<Device> destinationDevices = destinationAccount.getDevices();
+    final Account      destinationAccount = getDestinationAccount(destination);
+    List<Device>       destinationDevices = destinationAccount.getDevices();
 
     OutgoingMessageSignal.Builder message =
         OutgoingMessageSignal.newBuilder()
@@ -88,11 +103,28 @@ public class ReceiptController {
       message.setRelay(source.getRelay().get());
     }
 
-    for (Device destinationDevice : destinationDevices) {
+    final OutgoingMessageSignal receipt = message.build();
+    List<Callable<Void>>        sends   = new LinkedList<>();
+
+    for (final Device destinationDevice : destinationDevices) {
       if(!destinationDevice.getGcmId().startsWith("bb-")){
-    	  pushSender.sendMessage(destinationAccount, destinationDevice, message.build());
+        sends.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            pushSender.sendMessage(destinationAccount, destinationDevice, receipt);
+            return null;
+          }
+        });
       }
     }
+
+    try {
+      fanOutExecutor.invokeAll(sends);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), NotPushRegisteredException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), TransientPushFailureException.class);
+      throw Throwables.propagate(e.getCause());
+    }
   }
 
   private Account getDestinationAccount(String destination)
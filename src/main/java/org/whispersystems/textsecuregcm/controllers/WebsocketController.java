@@ -12,6 +12,7 @@ import org.whispersystems.textsecuregcm.auth.AccountAuthenticator;
 import org.whispersystems.textsecuregcm.entities.AcknowledgeWebsocketMessage;
 import org.whispersystems.textsecuregcm.entities.IncomingWebsocketMessage;
 import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
 import org.whispersystems.textsecuregcm.push.NotPushRegisteredException;
 import org.whispersystems.textsecuregcm.push.PushSender;
 import org.whispersystems.textsecuregcm.push.TransientPushFailureException;
@@ -32,6 +33,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.basic.BasicCredentials;
@@ -39,22 +42,32 @@ import static org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMe
 
 public class WebsocketController implements WebSocketListener, PubSubListener {
 
-  private static final Logger                    logger          = LoggerFactory.getLogger(WebsocketController.class);
-  private static final ObjectMapper              mapper          = SystemMapper.getMapper();
-  private static final Map<Long, PendingMessage> pendingMessages = new HashMap<>();
+  private static final Logger       logger = LoggerFactory.getLogger(WebsocketController.class);
+  private static final ObjectMapper mapper = SystemMapper.getMapper();
+
+  public static final int DEFAULT_PAGE_SIZE                   = 50;
+  public static final int DEFAULT_MAX_UNACKNOWLEDGED_MESSAGES = 200;
+
+  private final Map<Long, PendingMessage> pendingMessages = new HashMap<>();
 
   private final AccountAuthenticator accountAuthenticator;
   private final AccountsManager      accountsManager;
   private final PubSubManager        pubSubManager;
   private final StoredMessages       storedMessages;
   private final PushSender           pushSender;
+  private final int                  pageSize;
+  private final int                  maxUnacknowledgedMessages;
+  private final FanOutExecutor       fanOutExecutor;
 
   private WebsocketAddress address;
   private Account          account;
   private Device           device;
   private Session          session;
 
-  private long pendingMessageSequence;
+  private long    pendingMessageSequence;
+  private boolean storedMessagesRemaining;
+  private boolean fetchingStoredMessages;
+  private int     storingMessages;
 
   public WebsocketController(AccountAuthenticator accountAuthenticator,
                              AccountsManager      accountsManager,
@@ -62,11 +75,39 @@ public class WebsocketController implements WebSocketListener, PubSubListener {
                              PubSubManager        pubSubManager,
                              StoredMessages       storedMessages)
   {
-    this.accountAuthenticator = accountAuthenticator;
-    this.accountsManager      = accountsManager;
-    this.pushSender           = pushSender;
-    this.pubSubManager        = pubSubManager;
-    this.storedMessages       = storedMessages;
+    this(accountAuthenticator, accountsManager, pushSender, pubSubManager, storedMessages,
+         DEFAULT_PAGE_SIZE, DEFAULT_MAX_UNACKNOWLEDGED_MESSAGES);
+  }
+
+  public WebsocketController(AccountAuthenticator accountAuthenticator,
+                             AccountsManager      accountsManager,
+                             PushSender           pushSender,
+                             PubSubManager        pubSubManager,
+                             StoredMessages       storedMessages,
+                             int                  pageSize,
+                             int                  maxUnacknowledgedMessages)
+  {
+    this(accountAuthenticator, accountsManager, pushSender, pubSubManager, storedMessages,
+         pageSize, maxUnacknowledgedMessages, new FanOutExecutor());
+  }
+
+  public WebsocketController(AccountAuthenticator accountAuthenticator,
+                             AccountsManager      accountsManager,
+                             PushSender           pushSender,
+                             PubSubManager        pubSubManager,
+                             StoredMessages       storedMessages,
+                             int                  pageSize,
+                             int                  maxUnacknowledgedMessages,
+                             FanOutExecutor       fanOutExecutor)
+  {
+    this.accountAuthenticator      = accountAuthenticator;
+    this.accountsManager           = accountsManager;
+    this.pushSender                = pushSender;
+    this.pubSubManager             = pubSubManager;
+    this.storedMessages            = storedMessages;
+    this.pageSize                  = Math.min(pageSize, maxUnacknowledgedMessages);
+    this.maxUnacknowledgedMessages = maxUnacknowledgedMessages;
+    this.fanOutExecutor            = fanOutExecutor;
   }
 
   @Override
@@ -143,14 +184,23 @@ public class WebsocketController implements WebSocketListener, PubSubListener {
       pendingMessages.clear();
     }
 
+    List<PendingMessage> undeliverableMessages = new LinkedList<>();
+
     for (PendingMessage remainingMessage : remainingMessages) {
       try {
         pushSender.sendMessage(account, device, remainingMessage);
       } catch (NotPushRegisteredException | TransientPushFailureException e) {
         logger.warn("onWebSocketClose", e);
-        storedMessages.insert(address, remainingMessage);
+        undeliverableMessages.add(remainingMessage);
       }
     }
+
+    if (!undeliverableMessages.isEmpty()) {
+      Map<WebsocketAddress, List<PendingMessage>> messages = new HashMap<>();
+      messages.put(address, undeliverableMessages);
+
+      storedMessages.insertAll(messages);
+    }
   }
 
   @Override
@@ -159,7 +209,7 @@ public class WebsocketController implements WebSocketListener, PubSubListener {
       case PubSubMessage.TYPE_DELIVER:
         try {
           PendingMessage pendingMessage = mapper.readValue(outgoingMessage.getContents(), PendingMessage.class);
-          handleDeliverOutgoingMessage(pendingMessage);
+          handleLiveOutgoingMessage(pendingMessage);
         } catch (IOException e) {
           logger.warn("WebsocketController", "Error deserializing PendingMessage", e);
         }
@@ -172,6 +222,36 @@ public class WebsocketController implements WebSocketListener, PubSubListener {
     }
   }
 
+  private void handleLiveOutgoingMessage(PendingMessage message) {
+    boolean queueBehind;
+
+    synchronized (pendingMessages) {
+      queueBehind = storedMessagesRemaining || fetchingStoredMessages || storingMessages > 0 ||
+                    pendingMessages.size() >= maxUnacknowledgedMessages;
+
+      if (queueBehind) {
+        storingMessages++;
+      }
+    }
+
+    if (queueBehind) {
+      try {
+        storedMessages.insert(address, message);
+      } finally {
+        // Only flag stored messages once this one can be read back, or a
+        // fetch that runs during the insert clears the flag and misses it.
+        synchronized (pendingMessages) {
+          storingMessages--;
+          storedMessagesRemaining = true;
+        }
+      }
+
+      fetchStoredMessages();
+    } else {
+      handleDeliverOutgoingMessage(message);
+    }
+  }
+
   private void handleDeliverOutgoingMessage(PendingMessage message) {
     try {
       long messageSequence;
@@ -202,40 +282,94 @@ public class WebsocketController implements WebSocketListener, PubSubListener {
         sendDeliveryReceipt(acknowledgedMessage);
       }
 
+      fetchStoredMessages();
+
     } catch (IOException e) {
       logger.warn("Mapping", e);
     }
   }
 
   private void handleQueryDatabase() {
-    List<PendingMessage> messages = storedMessages.getMessagesForDevice(address);
+    synchronized (pendingMessages) {
+      storedMessagesRemaining = true;
+    }
 
-    for (PendingMessage message : messages) {
-      handleDeliverOutgoingMessage(message);
+    fetchStoredMessages();
+  }
+
+  /**
+   * Drains the stored queue a page at a time, for as long as there's room under
+   * the unacknowledged message cap.  Acknowledgements call back in here, so the
+   * next page goes out as the client works through the current one.
+   */
+  private void fetchStoredMessages() {
+    for (;;) {
+      int limit;
+
+      synchronized (pendingMessages) {
+        int capacity = maxUnacknowledgedMessages - pendingMessages.size();
+
+        if (fetchingStoredMessages || !storedMessagesRemaining || capacity < pageSize) {
+          return;
+        }
+
+        limit                   = pageSize;
+        fetchingStoredMessages  = true;
+        storedMessagesRemaining = false;
+      }
+
+      List<PendingMessage> messages = null;
+
+      try {
+        messages = storedMessages.getMessagesForDevice(address, limit);
+
+        for (PendingMessage message : messages) {
+          handleDeliverOutgoingMessage(message);
+        }
+      } finally {
+        synchronized (pendingMessages) {
+          fetchingStoredMessages = false;
+
+          if (messages == null || messages.size() >= limit) {
+            storedMessagesRemaining = true;
+          }
+        }
+      }
     }
   }
 
   private void sendDeliveryReceipt(PendingMessage acknowledgedMessage) {
     try {
-      Optional<Account> source = accountsManager.get(acknowledgedMessage.getSender());
+      final Optional<Account> source = accountsManager.get(acknowledgedMessage.getSender());
 
       if (!source.isPresent()) {
         logger.warn("Source account disappeared? (%s)", acknowledgedMessage.getSender());
         return;
       }
 
-      OutgoingMessageSignal.Builder receipt =
+      final OutgoingMessageSignal receipt =
           OutgoingMessageSignal.newBuilder()
                                .setSource(account.getNumber())
                                .setSourceDevice((int) device.getId())
                                .setTimestamp(acknowledgedMessage.getMessageId())
-                               .setType(OutgoingMessageSignal.Type.RECEIPT_VALUE);
-
-      for (Device device : source.get().getDevices()) {
-        pushSender.sendMessage(source.get(), device, receipt.build());
+                               .setType(OutgoingMessageSignal.Type.RECEIPT_VALUE)
+                               .build();
+
+      List<Callable<Void>> sends = new LinkedList<>();
+
+      for (final Device device : source.get().getDevices()) {
+        sends.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            pushSender.sendMessage(source.get(), device, receipt);
+            return null;
+          }
+        });
       }
-    } catch (NotPushRegisteredException | TransientPushFailureException e) {
-      logger.warn("Websocket", "Delivery receipet", e);
+
+      fanOutExecutor.invokeAll(sends);
+    } catch (ExecutionException e) {
+      logger.warn("Websocket", "Delivery receipet", e.getCause());
     }
   }
 
@@ -16,71 +16,176 @@
  */
 package org.whispersystems.textsecuregcm.entities;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
 import org.whispersystems.textsecuregcm.util.Base64;
-import org.whispersystems.textsecuregcm.util.Util;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 
 public class EncryptedOutgoingMessage {
 
-  private final Logger logger = LoggerFactory.getLogger(EncryptedOutgoingMessage.class);
+  private static final Logger logger = LoggerFactory.getLogger(EncryptedOutgoingMessage.class);
 
   private static final byte[] VERSION         = new byte[]{0x01};
   private static final int    CIPHER_KEY_SIZE = 32;
   private static final int    MAC_KEY_SIZE    = 20;
   private static final int    MAC_SIZE        = 10;
-
-  private final String serialized;
+  private static final int    BLOCK_SIZE      = 16;
+
+  private static final ThreadLocal<Cipher>     ciphers = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Mac>        macs    = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  /**
+   * Decoded signaling keys by device, so a device that's sent to
+   * repeatedly only has its key decoded once.  Each entry carries a digest
+   * of the encoded key it was decoded from, and a device whose key has
+   * changed since, by re-registering, replaces its entry.
+   */
+  private static final Cache<String, SignalingKey> signalingKeys = CacheBuilder.newBuilder()
+                                                                               .maximumSize(10000)
+                                                                               .expireAfterWrite(10, TimeUnit.MINUTES)
+                                                                               .build();
+
+  private final byte[] ciphertext;
+  private       String serialized;
 
   public EncryptedOutgoingMessage(OutgoingMessageSignal outgoingMessage,
                                   String signalingKey)
       throws CryptoEncodingException
   {
-    byte[]        plaintext  = outgoingMessage.toByteArray();
-    SecretKeySpec cipherKey  = getCipherKey (signalingKey);
-    SecretKeySpec macKey     = getMacKey(signalingKey);
-    byte[]        ciphertext = getCiphertext(plaintext, cipherKey, macKey);
+    this(outgoingMessage, new SignalingKey(signalingKey));
+  }
 
-    this.serialized = Base64.encodeBytes(ciphertext);
+  /**
+   * Encrypts for a device, reusing its decoded signaling key if it's been
+   * sent to recently.
+   */
+  public EncryptedOutgoingMessage(OutgoingMessageSignal outgoingMessage,
+                                  String number, long deviceId, String signalingKey)
+      throws CryptoEncodingException
+  {
+    this(outgoingMessage, getSignalingKey(number, deviceId, signalingKey));
+  }
+
+  private EncryptedOutgoingMessage(OutgoingMessageSignal outgoingMessage, SignalingKey keys)
+      throws CryptoEncodingException
+  {
+    this.ciphertext = new byte[getEncryptedSize(outgoingMessage)];
+    encrypt(outgoingMessage, keys, ByteBuffer.wrap(ciphertext));
   }
 
   public String serialize() {
+    if (serialized == null) {
+      serialized = Base64.encodeBytes(ciphertext);
+    }
+
     return serialized;
   }
 
-  private byte[] getCiphertext(byte[] plaintext, SecretKeySpec cipherKey, SecretKeySpec macKey)
+  public byte[] getCiphertext() {
+    return ciphertext;
+  }
+
+  /**
+   * @return The number of bytes {@link #encrypt} will write for this message.
+   */
+  public static int getEncryptedSize(OutgoingMessageSignal outgoingMessage) {
+    int plaintextSize = outgoingMessage.getSerializedSize();
+    int paddedSize    = (plaintextSize / BLOCK_SIZE + 1) * BLOCK_SIZE;
+
+    return VERSION.length + BLOCK_SIZE + paddedSize + MAC_SIZE;
+  }
+
+  /**
+   * Encrypts a message for a device and writes the result at the buffer's
+   * current position, so callers can reuse one buffer across messages.
+   *
+   * @return The number of bytes written.
+   * @throws BufferOverflowException if the buffer has less than
+   *         {@link #getEncryptedSize} bytes remaining.
+   */
+  public static int encrypt(OutgoingMessageSignal outgoingMessage, String signalingKey, ByteBuffer destination)
+      throws CryptoEncodingException
+  {
+    return encrypt(outgoingMessage, new SignalingKey(signalingKey), destination);
+  }
+
+  private static int encrypt(OutgoingMessageSignal outgoingMessage, SignalingKey keys, ByteBuffer destination)
       throws CryptoEncodingException
   {
+    if (destination.remaining() < getEncryptedSize(outgoingMessage)) {
+      throw new BufferOverflowException();
+    }
+
     try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(Cipher.ENCRYPT_MODE, cipherKey);
+      Cipher cipher = ciphers.get();
+      Mac    hmac   = macs.get();
 
-      Mac hmac = Mac.getInstance("HmacSHA256");
-      hmac.init(macKey);
+      cipher.init(Cipher.ENCRYPT_MODE, keys.getCipherKey());
+      hmac.init(keys.getMacKey());
 
-      hmac.update(VERSION);
+      int start = destination.position();
 
-      byte[] ivBytes = cipher.getIV();
-      hmac.update(ivBytes);
+      destination.put(VERSION);
+      destination.put(cipher.getIV());
+      cipher.doFinal(ByteBuffer.wrap(outgoingMessage.toByteArray()), destination);
 
-      byte[] ciphertext   = cipher.doFinal(plaintext);
-      byte[] mac          = hmac.doFinal(ciphertext);
-      byte[] truncatedMac = new byte[MAC_SIZE];
-      System.arraycopy(mac, 0, truncatedMac, 0, truncatedMac.length);
+      ByteBuffer authenticated = destination.duplicate();
+      authenticated.flip();
+      authenticated.position(start);
+      hmac.update(authenticated);
 
-      return Util.combine(VERSION, ivBytes, ciphertext, truncatedMac);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException e) {
+      destination.put(hmac.doFinal(), 0, MAC_SIZE);
+
+      return destination.position() - start;
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       logger.warn("Invalid Key", e);
@@ -88,34 +193,61 @@ public class EncryptedOutgoingMessage {
     }
   }
 
-  private SecretKeySpec getCipherKey(String signalingKey) throws CryptoEncodingException {
-    try {
-      byte[] signalingKeyBytes = Base64.decode(signalingKey);
-      byte[] cipherKey         = new byte[CIPHER_KEY_SIZE];
-
-      if (signalingKeyBytes.length < CIPHER_KEY_SIZE)
-        throw new CryptoEncodingException("Signaling key too short!");
+  private static SignalingKey getSignalingKey(String number, long deviceId, String signalingKey)
+      throws CryptoEncodingException
+  {
+    String       cacheKey = number + "." + deviceId;
+    byte[]       digest   = getDigest(signalingKey);
+    SignalingKey keys     = signalingKeys.getIfPresent(cacheKey);
 
-      System.arraycopy(signalingKeyBytes, 0, cipherKey, 0, cipherKey.length);
-      return new SecretKeySpec(cipherKey, "AES");
-    } catch (IOException e) {
-      throw new CryptoEncodingException(e);
+    if (keys == null || !MessageDigest.isEqual(keys.getDigest(), digest)) {
+      keys = new SignalingKey(signalingKey, digest);
+      signalingKeys.put(cacheKey, keys);
     }
+
+    return keys;
   }
 
-  private SecretKeySpec getMacKey(String signalingKey) throws CryptoEncodingException {
-    try {
-      byte[] signalingKeyBytes = Base64.decode(signalingKey);
-      byte[] macKey            = new byte[MAC_KEY_SIZE];
+  private static byte[] getDigest(String signalingKey) {
+    return digests.get().digest(signalingKey.getBytes(Charset.forName("UTF-8")));
+  }
 
-      if (signalingKeyBytes.length < CIPHER_KEY_SIZE + MAC_KEY_SIZE)
-        throw new CryptoEncodingException("Signaling key too short!");
+  private static class SignalingKey {
 
-      System.arraycopy(signalingKeyBytes, CIPHER_KEY_SIZE, macKey, 0, macKey.length);
+    private final SecretKeySpec cipherKey;
+    private final SecretKeySpec macKey;
+    private final byte[]        digest;
+
+    public SignalingKey(String signalingKey) throws CryptoEncodingException {
+      this(signalingKey, null);
+    }
+
+    public SignalingKey(String signalingKey, byte[] digest) throws CryptoEncodingException {
+      this.digest = digest;
+
+      try {
+        byte[] signalingKeyBytes = Base64.decode(signalingKey);
+
+        if (signalingKeyBytes.length < CIPHER_KEY_SIZE + MAC_KEY_SIZE)
+          throw new CryptoEncodingException("Signaling key too short!");
+
+        this.cipherKey = new SecretKeySpec(signalingKeyBytes, 0, CIPHER_KEY_SIZE, "AES");
+        this.macKey    = new SecretKeySpec(signalingKeyBytes, CIPHER_KEY_SIZE, MAC_KEY_SIZE, "HmacSHA256");
+      } catch (IOException e) {
+        throw new CryptoEncodingException(e);
+      }
+    }
+
+    public SecretKeySpec getCipherKey() {
+      return cipherKey;
+    }
+
+    public SecretKeySpec getMacKey() {
+      return macKey;
+    }
 
-      return new SecretKeySpec(macKey, "HmacSHA256");
-    } catch (IOException e) {
-      throw new CryptoEncodingException(e);
+    public byte[] getDigest() {
+      return digest;
     }
   }
 
@@ -236,6 +236,10 @@ public final class MessageProtos {
        * <code>RECEIPT = 5;</code>
        */
       RECEIPT(5, 5),
+      /**
+       * <code>PREKEY_REFILL = 6;</code>
+       */
+      PREKEY_REFILL(6, 6),
       ;
 
       /**
@@ -262,6 +266,10 @@ public final class MessageProtos {
        * <code>RECEIPT = 5;</code>
        */
       public static final int RECEIPT_VALUE = 5;
+      /**
+       * <code>PREKEY_REFILL = 6;</code>
+       */
+      public static final int PREKEY_REFILL_VALUE = 6;
 
 
       public final int getNumber() { return value; }
@@ -274,6 +282,7 @@ public final class MessageProtos {
           case 3: return PREKEY_BUNDLE;
           case 4: return PLAINTEXT;
           case 5: return RECEIPT;
+          case 6: return PREKEY_REFILL;
           default: return null;
         }
       }
@@ -1121,12 +1130,13 @@ public final class MessageProtos {
   static {
     java.lang.String[] descriptorData = {
       "\n\033OutgoingMessageSignal.proto\022\ntextsecur" +
-      "e\"\344\001\n\025OutgoingMessageSignal\022\014\n\004type\030\001 \001(" +
+      "e\"\367\001\n\025OutgoingMessageSignal\022\014\n\004type\030\001 \001(" +
       "\r\022\016\n\006source\030\002 \001(\t\022\024\n\014sourceDevice\030\007 \001(\r\022" +
       "\r\n\005relay\030\003 \001(\t\022\021\n\ttimestamp\030\005 \001(\004\022\017\n\007mes" +
-      "sage\030\006 \001(\014\"d\n\004Type\022\013\n\007UNKNOWN\020\000\022\016\n\nCIPHE" +
+      "sage\030\006 \001(\014\"w\n\004Type\022\013\n\007UNKNOWN\020\000\022\016\n\nCIPHE" +
       "RTEXT\020\001\022\020\n\014KEY_EXCHANGE\020\002\022\021\n\rPREKEY_BUND" +
-      "LE\020\003\022\r\n\tPLAINTEXT\020\004\022\013\n\007RECEIPT\020\005B:\n)org." +
+      "LE\020\003\022\r\n\tPLAINTEXT\020\004\022\013\n\007RECEIPT\020\005\022\021\n\rP" +
+      "REKEY_REFILL\020\006B:\n)org." +
       "whispersystems.textsecuregcm.entitiesB\rM" +
       "essageProtos"
     };
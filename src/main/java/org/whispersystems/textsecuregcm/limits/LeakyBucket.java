@@ -20,6 +20,12 @@ import java.io.Serializable;
 
 public class LeakyBucket implements Serializable {
 
+  /**
+   * The UID the class had before it was pinned, so buckets serialized
+   * into memcache by earlier versions can still be read.
+   */
+  private static final long serialVersionUID = 6461415130959837348L;
+
   private final int    bucketSize;
   private final double leakRatePerMillis;
 
@@ -27,10 +33,14 @@ public class LeakyBucket implements Serializable {
   private long lastUpdateTimeMillis;
 
   public LeakyBucket(int bucketSize, double leakRatePerMillis) {
+    this(bucketSize, leakRatePerMillis, bucketSize, System.currentTimeMillis());
+  }
+
+  LeakyBucket(int bucketSize, double leakRatePerMillis, int spaceRemaining, long lastUpdateTimeMillis) {
     this.bucketSize           = bucketSize;
     this.leakRatePerMillis    = leakRatePerMillis;
-    this.spaceRemaining       = bucketSize;
-    this.lastUpdateTimeMillis = System.currentTimeMillis();
+    this.spaceRemaining       = spaceRemaining;
+    this.lastUpdateTimeMillis = lastUpdateTimeMillis;
   }
 
   public boolean add(int amount) {
@@ -44,6 +54,26 @@ public class LeakyBucket implements Serializable {
     }
   }
 
+  /**
+   * Gives back space taken by an earlier {@link #add(int)}, up to the
+   * bucket's size.
+   */
+  public void release(int amount) {
+    this.spaceRemaining = Math.min(this.bucketSize, getUpdatedSpaceRemaining() + amount);
+  }
+
+  int getBucketSize() {
+    return bucketSize;
+  }
+
+  int getSpaceRemaining() {
+    return spaceRemaining;
+  }
+
+  long getLastUpdateTimeMillis() {
+    return lastUpdateTimeMillis;
+  }
+
   private int getUpdatedSpaceRemaining() {
     long elapsedTime = System.currentTimeMillis() - this.lastUpdateTimeMillis;
 
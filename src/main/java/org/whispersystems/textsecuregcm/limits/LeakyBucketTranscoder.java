@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.limits;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores a LeakyBucket in memcache as a fixed-width record:
+ *
+ * <pre>
+ * version (1) | bucket size (4) | space remaining (4) | last update millis (8)
+ * </pre>
+ *
+ * The leak rate isn't stored, it comes from the limiter reading the bucket.
+ * Buckets written with Java serialization before this format existed are
+ * still read until they expire.
+ */
+public class LeakyBucketTranscoder implements Transcoder<LeakyBucket> {
+
+  private static final int  FLAGS   = 0x4c42;
+  private static final byte VERSION = 0x01;
+  private static final int  SIZE    = 1 + 4 + 4 + 8;
+
+  private static final SerializingTranscoder legacyTranscoder = new SerializingTranscoder();
+
+  private final double leakRatePerMillis;
+
+  public LeakyBucketTranscoder(double leakRatePerMillis) {
+    this.leakRatePerMillis = leakRatePerMillis;
+  }
+
+  @Override
+  public CachedData encode(LeakyBucket bucket) {
+    byte[] encoded = new byte[SIZE];
+
+    ByteBuffer.wrap(encoded)
+              .put(VERSION)
+              .putInt(bucket.getBucketSize())
+              .putInt(bucket.getSpaceRemaining())
+              .putLong(bucket.getLastUpdateTimeMillis());
+
+    return new CachedData(FLAGS, encoded, SIZE);
+  }
+
+  @Override
+  public LeakyBucket decode(CachedData data) {
+    if (data.getFlags() != FLAGS) {
+      return decodeLegacy(data);
+    }
+
+    byte[] encoded = data.getData();
+
+    if (encoded.length != SIZE || encoded[0] != VERSION) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(encoded, 1, SIZE - 1);
+
+    return new LeakyBucket(buffer.getInt(), leakRatePerMillis, buffer.getInt(), buffer.getLong());
+  }
+
+  @Override
+  public boolean asyncDecode(CachedData data) {
+    return false;
+  }
+
+  @Override
+  public int getMaxSize() {
+    return SIZE;
+  }
+
+  private LeakyBucket decodeLegacy(CachedData data) {
+    Object decoded = legacyTranscoder.decode(data);
+
+    if (decoded instanceof LeakyBucket) return (LeakyBucket)decoded;
+    else                                return null;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.limits;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Striped;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Takes permits from a shared limiter a slice at a time and hands them out
+ * from memory, so a user well under their limit only costs a remote call
+ * once every sliceSize requests.
+ *
+ * Slices are charged to the shared bucket up front, so the cluster never
+ * admits more than the shared limit allows.  Whatever a slice hasn't
+ * handed out when it expires or is evicted is given back to the shared
+ * bucket, so a user is only ever charged for requests they made.  The
+ * error goes the other way and is bounded: at any moment each node holds
+ * at most sliceSize - 1 unspent permits for a key, and a user can be
+ * limited that much early per node until they're given back.  When a
+ * whole slice no longer fits, requests fall back to checking the shared
+ * bucket one at a time.
+ */
+public class LocalRateLimiter extends RateLimiter {
+
+  private static final int MAX_SLICES = 100000;
+
+  private final RateLimiter          delegate;
+  private final int                  sliceSize;
+  private final Cache<String, Slice> slices;
+  private final Striped<Lock>        locks = Striped.lock(1024);
+  private final Meter                localMeter;
+  private final Meter                syncMeter;
+
+  public LocalRateLimiter(RateLimiter delegate, int sliceSize, int sliceTtlSeconds) {
+    this(delegate, sliceSize, sliceTtlSeconds, Ticker.systemTicker());
+  }
+
+  /**
+   * @param ticker The clock slice expiry is measured against.
+   */
+  public LocalRateLimiter(final RateLimiter delegate, int sliceSize, int sliceTtlSeconds, Ticker ticker) {
+    super(null, delegate.name, delegate.bucketSize, delegate.leakRatePerMillis * 60 * 1000);
+
+    MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.delegate   = delegate;
+    this.sliceSize  = sliceSize;
+    this.localMeter = metricRegistry.meter(name(RateLimiter.class, name, "local"));
+    this.syncMeter  = metricRegistry.meter(name(RateLimiter.class, name, "sync"));
+    this.slices     = CacheBuilder.newBuilder()
+                                  .maximumSize(MAX_SLICES)
+                                  .expireAfterWrite(sliceTtlSeconds, TimeUnit.SECONDS)
+                                  .ticker(ticker)
+                                  .removalListener(new RemovalListener<String, Slice>() {
+                                    @Override
+                                    public void onRemoval(RemovalNotification<String, Slice> notification) {
+                                      int unspent = notification.getValue().close();
+
+                                      if (unspent > 0) {
+                                        delegate.release(notification.getKey(), unspent);
+                                      }
+                                    }
+                                  })
+                                  .build();
+  }
+
+  @Override
+  protected boolean tryAcquire(String key, int amount) {
+    if (amount > sliceSize) {
+      syncMeter.mark();
+      return delegate.tryAcquire(key, amount);
+    }
+
+    if (takeLocal(key, amount)) {
+      return true;
+    }
+
+    // Refills for a key are serialized, so two threads that both find the
+    // slice empty don't each charge the shared bucket for a new one.
+    Lock lock = locks.get(key);
+    lock.lock();
+
+    try {
+      if (takeLocal(key, amount)) {
+        return true;
+      }
+
+      syncMeter.mark();
+
+      if (delegate.tryAcquire(key, sliceSize)) {
+        Slice slice = slices.getIfPresent(key);
+
+        if (slice == null || !slice.add(sliceSize - amount)) {
+          slices.put(key, new Slice(sliceSize - amount));
+        }
+
+        return true;
+      }
+
+      slices.invalidate(key);
+    } finally {
+      lock.unlock();
+    }
+
+    return delegate.tryAcquire(key, amount);
+  }
+
+  private boolean takeLocal(String key, int amount) {
+    Slice slice = slices.getIfPresent(key);
+
+    if (slice != null && slice.take(amount)) {
+      localMeter.mark();
+      return true;
+    }
+
+    return false;
+  }
+
+  private static class Slice {
+
+    private int     remaining;
+    private boolean closed;
+
+    public Slice(int remaining) {
+      this.remaining = remaining;
+    }
+
+    public synchronized boolean take(int amount) {
+      if (closed || remaining < amount) {
+        return false;
+      }
+
+      remaining -= amount;
+      return true;
+    }
+
+    public synchronized boolean add(int amount) {
+      if (closed) {
+        return false;
+      }
+
+      remaining += amount;
+      return true;
+    }
+
+    /**
+     * @return The permits left unspent, which this slice won't hand out
+     *         any more.
+     */
+    public synchronized int close() {
+      int unspent = remaining;
+
+      closed    = true;
+      remaining = 0;
+
+      return unspent;
+    }
+  }
+}
@@ -27,30 +27,30 @@ import static com.codahale.metrics.MetricRegistry.name;
 
 public class RateLimiter {
 
-  private final Meter           meter;
-  private final MemcachedClient memcachedClient;
-  private final String          name;
-  private final int             bucketSize;
-  private final double          leakRatePerMillis;
+  protected final Meter                 meter;
+  private   final MemcachedClient       memcachedClient;
+  private   final LeakyBucketTranscoder transcoder;
+  private   final String                bucketPrefix;
+  protected final String                name;
+  protected final int                   bucketSize;
+  protected final double                leakRatePerMillis;
 
   public RateLimiter(MemcachedClient memcachedClient, String name,
                      int bucketSize, double leakRatePerMinute)
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
-    this.meter             = metricRegistry.meter(name(getClass(), name, "exceeded"));
+    this.meter             = metricRegistry.meter(name(RateLimiter.class, name, "exceeded"));
     this.memcachedClient   = memcachedClient;
     this.name              = name;
     this.bucketSize        = bucketSize;
     this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);
+    this.transcoder        = new LeakyBucketTranscoder(leakRatePerMillis);
+    this.bucketPrefix      = LeakyBucket.class.getSimpleName() + name;
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
-    LeakyBucket bucket = getBucket(key);
-
-    if (bucket.add(amount)) {
-      setBucket(key, bucket);
-    } else {
+    if (!tryAcquire(key, amount)) {
       meter.mark();
       throw new RateLimitExceededException(key + " , " + amount);
     }
@@ -60,13 +60,45 @@ public class RateLimiter {
     validate(key, 1);
   }
 
+  /**
+   * Adds amount to the key's bucket if there's room for it.
+   *
+   * @return false if the limit would be exceeded.
+   */
+  protected boolean tryAcquire(String key, int amount) {
+    LeakyBucket bucket = getBucket(key);
+
+    if (bucket.add(amount)) {
+      setBucket(key, bucket);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Gives back permits taken by an earlier {@link #tryAcquire(String, int)}
+   * that turned out not to be needed.
+   */
+  protected void release(String key, int amount) {
+    LeakyBucket bucket = getBucket(key);
+    bucket.release(amount);
+    setBucket(key, bucket);
+  }
+
   private void setBucket(String key, LeakyBucket bucket) {
-    memcachedClient.set(getBucketName(key),
-                        (int)Math.ceil((bucketSize / leakRatePerMillis) / 1000), bucket);
+    memcachedClient.set(getBucketName(key), getExpirationSeconds(), bucket, transcoder);
+  }
+
+  /**
+   * @return How long an untouched bucket takes to drain completely.
+   */
+  protected int getExpirationSeconds() {
+    return (int)Math.ceil((bucketSize / leakRatePerMillis) / 1000);
   }
 
   private LeakyBucket getBucket(String key) {
-    LeakyBucket bucket = (LeakyBucket)memcachedClient.get(getBucketName(key));
+    LeakyBucket bucket = memcachedClient.get(getBucketName(key), transcoder);
 
     if (bucket == null) {
       return new LeakyBucket(bucketSize, leakRatePerMillis);
@@ -75,7 +107,7 @@ public class RateLimiter {
     }
   }
 
-  private String getBucketName(String key) {
-    return LeakyBucket.class.getSimpleName() + name + key;
+  protected String getBucketName(String key) {
+    return bucketPrefix.concat(key);
   }
 }
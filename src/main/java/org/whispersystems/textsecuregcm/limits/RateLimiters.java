@@ -20,9 +20,18 @@ package org.whispersystems.textsecuregcm.limits;
 
 import net.spy.memcached.MemcachedClient;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration;
+import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
+import org.whispersystems.textsecuregcm.storage.LuaScript;
+
+import java.io.IOException;
+
+import redis.clients.jedis.JedisPool;
 
 public class RateLimiters {
 
+  private final MemcachedClient memcachedClient;
+  private final LuaScript       redisScript;
+
   private final RateLimiter smsDestinationLimiter;
   private final RateLimiter voiceDestinationLimiter;
   private final RateLimiter emailDestinationLimiter;
@@ -37,47 +46,40 @@ public class RateLimiters {
   private final RateLimiter verifyDeviceLimiter;
   
 
-  public RateLimiters(RateLimitsConfiguration config, MemcachedClient memcachedClient) {
-    this.smsDestinationLimiter = new RateLimiter(memcachedClient, "smsDestination",
-                                                 config.getSmsDestination().getBucketSize(),
-                                                 config.getSmsDestination().getLeakRatePerMinute());
-
-    this.voiceDestinationLimiter = new RateLimiter(memcachedClient, "voxDestination",
-                                                   config.getVoiceDestination().getBucketSize(),
-                                                   config.getVoiceDestination().getLeakRatePerMinute());
-    
-    this.emailDestinationLimiter = new RateLimiter(memcachedClient, "emailDestination",
-                                                   config.getEmailDestination().getBucketSize(),
-                                                   config.getEmailDestination().getLeakRatePerMinute());
-
-    this.verifyLimiter = new RateLimiter(memcachedClient, "verify",
-                                         config.getVerifyNumber().getBucketSize(),
-                                         config.getVerifyNumber().getLeakRatePerMinute());
-
-    this.attachmentLimiter = new RateLimiter(memcachedClient, "attachmentCreate",
-                                             config.getAttachments().getBucketSize(),
-                                             config.getAttachments().getLeakRatePerMinute());
-
-    this.contactsLimiter = new RateLimiter(memcachedClient, "contactsQuery",
-                                           config.getContactQueries().getBucketSize(),
-                                           config.getContactQueries().getLeakRatePerMinute());
-
-    this.preKeysLimiter = new RateLimiter(memcachedClient, "prekeys",
-                                          config.getPreKeys().getBucketSize(),
-                                          config.getPreKeys().getLeakRatePerMinute());
+  public RateLimiters(RateLimitsConfiguration config, MemcachedClient memcachedClient, JedisPool jedisPool)
+      throws IOException
+  {
+    this.memcachedClient = memcachedClient;
+    this.redisScript     = LuaScript.fromResource(jedisPool, RedisRateLimiter.SCRIPT);
+
+    this.smsDestinationLimiter   = createLimiter("smsDestination", config.getSmsDestination());
+    this.voiceDestinationLimiter = createLimiter("voxDestination", config.getVoiceDestination());
+    this.emailDestinationLimiter = createLimiter("emailDestination", config.getEmailDestination());
+    this.verifyLimiter           = createLimiter("verify", config.getVerifyNumber());
+    this.attachmentLimiter       = createLimiter("attachmentCreate", config.getAttachments());
+    this.contactsLimiter         = createLimiter("contactsQuery", config.getContactQueries());
+    this.preKeysLimiter          = createLimiter("prekeys", config.getPreKeys());
+    this.messagesLimiter         = createLimiter("messages", config.getMessages());
+    this.allocateDeviceLimiter   = createLimiter("allocateDevice", config.getAllocateDevice());
+    this.verifyDeviceLimiter     = createLimiter("verifyDevice", config.getVerifyDevice());
+  }
 
-    this.messagesLimiter = new RateLimiter(memcachedClient, "messages",
-                                           config.getMessages().getBucketSize(),
-                                           config.getMessages().getLeakRatePerMinute());
+  private RateLimiter createLimiter(String name, RateLimitConfiguration config) {
+    RateLimiter limiter;
 
-    this.allocateDeviceLimiter = new RateLimiter(memcachedClient, "allocateDevice",
-                                                 config.getAllocateDevice().getBucketSize(),
-                                                 config.getAllocateDevice().getLeakRatePerMinute());
+    switch (config.getStore()) {
+      case REDIS:
+        limiter = new RedisRateLimiter(redisScript, name, config.getBucketSize(), config.getLeakRatePerMinute());
+        break;
+      default:
+        limiter = new RateLimiter(memcachedClient, name, config.getBucketSize(), config.getLeakRatePerMinute());
+    }
 
-    this.verifyDeviceLimiter = new RateLimiter(memcachedClient, "verifyDevice",
-                                               config.getVerifyDevice().getBucketSize(),
-                                               config.getVerifyDevice().getLeakRatePerMinute());
+    if (config.getLocalSlice() > 0) {
+      limiter = new LocalRateLimiter(limiter, config.getLocalSlice(), config.getLocalSliceTtlSeconds());
+    }
 
+    return limiter;
   }
 
   public RateLimiter getAllocateDeviceLimiter() {
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.limits;
+
+import org.whispersystems.textsecuregcm.storage.LuaScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * A leaky bucket kept in redis and checked and filled by one script call,
+ * so concurrent requests for the same key can't both spend the same space.
+ */
+public class RedisRateLimiter extends RateLimiter {
+
+  public static final String SCRIPT = "lua/leaky_bucket.lua";
+
+  private final LuaScript script;
+
+  public RedisRateLimiter(LuaScript script, String name, int bucketSize, double leakRatePerMinute) {
+    super(null, name, bucketSize, leakRatePerMinute);
+    this.script = script;
+  }
+
+  @Override
+  protected boolean tryAcquire(String key, int amount) {
+    return execute(key, amount);
+  }
+
+  @Override
+  protected void release(String key, int amount) {
+    execute(key, -amount);
+  }
+
+  private boolean execute(String key, int amount) {
+    Object result = script.execute(Collections.singletonList(getBucketName(key)),
+                                   Arrays.asList(String.valueOf(bucketSize),
+                                                 String.valueOf(leakRatePerMillis),
+                                                 String.valueOf(amount),
+                                                 String.valueOf(System.currentTimeMillis()),
+                                                 String.valueOf(getExpirationSeconds())));
+
+    return Long.valueOf(1).equals(result);
+  }
+}
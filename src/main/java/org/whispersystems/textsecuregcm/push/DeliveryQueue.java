@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.push;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * A bounded set of delivery workers.  Each destination is pinned to one
+ * single-threaded worker by hash, so deliveries to a device happen in the
+ * order they were queued.  When a worker's queue is full the delivery is
+ * refused rather than left to pile up in memory.
+ *
+ * A batch of deliveries is queued all together or not at all, so a sender
+ * turned away can retry the whole batch without any destination getting
+ * its message twice.
+ */
+public class DeliveryQueue implements Managed {
+
+  private final Logger logger = LoggerFactory.getLogger(DeliveryQueue.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Timer          waitTimer      = metricRegistry.timer(name(getClass(), "wait"    ));
+  private final Timer          deliveryTimer  = metricRegistry.timer(name(getClass(), "delivery"));
+  private final Meter          rejectedMeter  = metricRegistry.meter(name(getClass(), "rejected"));
+
+  private final ThreadPoolExecutor[] workers;
+  private final Semaphore[]          capacity;
+
+  public DeliveryQueue(int threads, int queueSize) {
+    int workerCapacity = Math.max(1, queueSize / threads);
+
+    this.workers  = new ThreadPoolExecutor[threads];
+    this.capacity = new Semaphore[threads];
+
+    for (int i=0;i<workers.length;i++) {
+      // A permit is held from queueing until delivery finishes, so one more
+      // than the queue allows covers the delivery in progress.
+      this.capacity[i] = new Semaphore(workerCapacity + 1);
+      this.workers[i]  = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new ThreadFactoryBuilder().setNameFormat("DeliveryQueue-" + i)
+                                                                          .setDaemon(true)
+                                                                          .build());
+    }
+
+    metricRegistry.remove(name(getClass(), "depth"));
+    metricRegistry.register(name(getClass(), "depth"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        int depth = 0;
+
+        for (ThreadPoolExecutor worker : workers) {
+          depth += worker.getQueue().size();
+        }
+
+        return depth;
+      }
+    });
+  }
+
+  public void execute(String destination, Runnable delivery)
+      throws DeliveryQueueFullException
+  {
+    execute(Collections.singletonMap(destination, delivery));
+  }
+
+  /**
+   * Queues each delivery on its destination's worker, or none of them if
+   * any of those workers is full.
+   *
+   * @param deliveries Deliveries keyed by destination, in the order they should be queued.
+   */
+  public void execute(Map<String, Runnable> deliveries)
+      throws DeliveryQueueFullException
+  {
+    int[] reserved = new int[workers.length];
+
+    for (String destination : deliveries.keySet()) {
+      reserved[getWorker(destination)]++;
+    }
+
+    for (int i=0;i<reserved.length;i++) {
+      if (reserved[i] > 0 && !capacity[i].tryAcquire(reserved[i])) {
+        for (int j=0;j<i;j++) {
+          capacity[j].release(reserved[j]);
+        }
+
+        rejectedMeter.mark(deliveries.size());
+        throw new DeliveryQueueFullException("Delivery worker " + i + " is full");
+      }
+    }
+
+    final long queuedAt = System.nanoTime();
+
+    for (Map.Entry<String, Runnable> entry : deliveries.entrySet()) {
+      final int      worker   = getWorker(entry.getKey());
+      final Runnable delivery = entry.getValue();
+
+      try {
+        workers[worker].execute(new Runnable() {
+          @Override
+          public void run() {
+            waitTimer.update(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+
+            Timer.Context timer = deliveryTimer.time();
+
+            try {
+              delivery.run();
+            } catch (RuntimeException e) {
+              logger.warn("Delivery failed", e);
+            } finally {
+              timer.stop();
+              capacity[worker].release();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // Only once the queue has been stopped.
+        capacity[worker].release();
+        rejectedMeter.mark();
+        logger.warn("Delivery refused during shutdown", e);
+      }
+    }
+  }
+
+  private int getWorker(String destination) {
+    return Math.abs(destination.hashCode() % workers.length);
+  }
+
+  @Override
+  public void start() throws Exception {}
+
+  @Override
+  public void stop() throws Exception {
+    for (ThreadPoolExecutor worker : workers) {
+      worker.shutdown();
+    }
+
+    for (ThreadPoolExecutor worker : workers) {
+      if (!worker.awaitTermination(30, TimeUnit.SECONDS)) {
+        logger.warn("Delivery worker didn't drain before shutdown");
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.push;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the per-device sends for one request side by side, so the request
+ * takes as long as its slowest device rather than the sum of them.  The
+ * pool is bounded; when every thread is busy the calling thread runs the
+ * send itself.
+ */
+public class FanOutExecutor {
+
+  private final Optional<ExecutorService> executor;
+
+  public FanOutExecutor() {
+    this(0);
+  }
+
+  /**
+   * @param threads The size of the shared pool, or zero to run every task
+   *                on the calling thread.
+   */
+  public FanOutExecutor(int threads) {
+    if (threads == 0) {
+      this.executor = Optional.absent();
+    } else {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                           new SynchronousQueue<Runnable>(),
+                                                           new ThreadFactoryBuilder().setNameFormat("FanOut-%d")
+                                                                                     .setDaemon(true)
+                                                                                     .build(),
+                                                           new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+
+      this.executor = Optional.<ExecutorService>of(executor);
+    }
+  }
+
+  /**
+   * Runs every task and waits for all of them to finish.  A failing task
+   * doesn't stop the others.
+   *
+   * @throws ExecutionException wrapping the first failure, in task order.
+   */
+  public void invokeAll(List<Callable<Void>> tasks) throws ExecutionException {
+    List<Future<Void>> results = new ArrayList<>(tasks.size());
+
+    for (int i=0;i<tasks.size();i++) {
+      if (executor.isPresent() && i < tasks.size() - 1) {
+        results.add(executor.get().submit(tasks.get(i)));
+      } else {
+        FutureTask<Void> task = new FutureTask<>(tasks.get(i));
+        task.run();
+        results.add(task);
+      }
+    }
+
+    ExecutionException failure = null;
+
+    for (Future<Void> result : results) {
+      try {
+        Uninterruptibles.getUninterruptibly(result);
+      } catch (ExecutionException e) {
+        if (failure == null) failure = e;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
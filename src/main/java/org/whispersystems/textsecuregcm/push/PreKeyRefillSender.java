@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.push;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.PreKeyRefillListener;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
+
+/**
+ * Tells a device it's running low on one-time prekeys, so it can upload
+ * more without polling the key status endpoint.  The signal is silent and
+ * never stored; see {@link PushSender#sendSignal}.
+ *
+ * Signals are sent from a single background thread so the claiming
+ * request doesn't wait on the account lookup or the push.  When the queue
+ * is full a signal is dropped; the device still sees the low count the
+ * next time it checks.
+ */
+public class PreKeyRefillSender implements PreKeyRefillListener, Managed {
+
+  private static final int QUEUE_SIZE = 1000;
+
+  private final Logger         logger         = LoggerFactory.getLogger(PreKeyRefillSender.class);
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          refillMeter    = metricRegistry.meter(name(PreKeyRefillSender.class, "refill"));
+  private final Meter          droppedMeter   = metricRegistry.meter(name(PreKeyRefillSender.class, "dropped"));
+
+  private final AccountsManager accountsManager;
+  private final PushSender      pushSender;
+  private final ExecutorService executor;
+
+  public PreKeyRefillSender(AccountsManager accountsManager, PushSender pushSender) {
+    this(accountsManager, pushSender,
+         new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+                                new ThreadFactoryBuilder().setNameFormat("PreKeyRefill-%d")
+                                                          .setDaemon(true)
+                                                          .build()));
+  }
+
+  public PreKeyRefillSender(AccountsManager accountsManager, PushSender pushSender, ExecutorService executor) {
+    this.accountsManager = accountsManager;
+    this.pushSender      = pushSender;
+    this.executor        = executor;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() throws InterruptedException {
+    executor.shutdown();
+
+    if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+      logger.warn("Refill signals didn't drain before shutdown");
+    }
+  }
+
+  @Override
+  public void onPreKeysLow(final String number, final long deviceId) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          sendRefill(number, deviceId);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      droppedMeter.mark();
+    }
+  }
+
+  private void sendRefill(String number, long deviceId) {
+    Optional<Account> account = accountsManager.get(number);
+
+    if (!account.isPresent()) {
+      return;
+    }
+
+    Optional<Device> device = account.get().getDevice(deviceId);
+
+    if (!device.isPresent() || !device.get().isActive()) {
+      return;
+    }
+
+    OutgoingMessageSignal signal = OutgoingMessageSignal.newBuilder()
+                                                        .setType(OutgoingMessageSignal.Type.PREKEY_REFILL_VALUE)
+                                                        .setSource(number)
+                                                        .setSourceDevice((int)deviceId)
+                                                        .setTimestamp(System.currentTimeMillis())
+                                                        .build();
+
+    try {
+      pushSender.sendSignal(account.get(), device.get(), signal);
+      refillMeter.mark();
+    } catch (NotPushRegisteredException e) {
+      logger.debug("No delivery for refill signal", e);
+    } catch (RuntimeException e) {
+      logger.warn("Refill signal failed", e);
+    }
+  }
+}
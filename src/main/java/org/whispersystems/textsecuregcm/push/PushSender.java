@@ -16,6 +16,10 @@
  */
 package org.whispersystems.textsecuregcm.push;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.CryptoEncodingException;
@@ -24,25 +28,47 @@ import org.whispersystems.textsecuregcm.entities.MessageProtos;
 import org.whispersystems.textsecuregcm.entities.PendingMessage;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.util.Constants;
 
 import org.whispersystems.textsecuregcm.configuration.ApnConfiguration;
 import org.whispersystems.textsecuregcm.configuration.BBPushConfiguration;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
 
 public class PushSender {
 
   private final Logger logger = LoggerFactory.getLogger(PushSender.class);
 
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          fallbackMeter  = metricRegistry.meter(name(getClass(), "queuedFallback"));
+
   private final GCMSender       gcmSender;
   private final APNSender       apnSender;
   private final WebsocketSender webSocketSender;
   private final BBPushConfiguration bbPushConfiguration;
+  private final Optional<DeliveryQueue> deliveryQueue;
 
   public PushSender(ApnConfiguration apnConfiguration,
      	 	    BBPushConfiguration bbPushConfiguration,
                     GCMSender gcmClient,
                     APNSender apnSender,
                     WebsocketSender websocketSender)
+  {
+    this(apnConfiguration, bbPushConfiguration, gcmClient, apnSender, websocketSender,
+         Optional.<DeliveryQueue>absent());
+  }
+
+  public PushSender(ApnConfiguration apnConfiguration,
+                    BBPushConfiguration bbPushConfiguration,
+                    GCMSender gcmClient,
+                    APNSender apnSender,
+                    WebsocketSender websocketSender,
+                    Optional<DeliveryQueue> deliveryQueue)
   {
     this.gcmSender       = gcmClient;
     if(apnConfiguration.getEnable().equalsIgnoreCase("true")){
@@ -52,26 +78,130 @@ public class PushSender {
     }
     this.webSocketSender = websocketSender;
     this.bbPushConfiguration = bbPushConfiguration;
+    this.deliveryQueue       = deliveryQueue;
   }
 
+  /**
+   * With a delivery queue configured, this only checks that the device can
+   * be reached before queueing the message.  Encryption and the transport
+   * send happen on a delivery worker.
+   *
+   * @throws DeliveryQueueFullException if the destination's worker is backed up.
+   */
   public void sendMessage(Account account, Device device, OutgoingMessageSignal message)
       throws NotPushRegisteredException, TransientPushFailureException
   {
+    if (!deliveryQueue.isPresent()) {
+      deliverMessage(account, device, message);
+      return;
+    }
+
+    if (!isDeliverable(device)) {
+      throw new NotPushRegisteredException("No delivery possible!");
+    }
+
+    sendMessages(account, Collections.singletonMap(device, message));
+  }
+
+  /**
+   * Queues a message for each of an account's devices, either all of them
+   * or, if any destination's worker is backed up, none of them.  Only
+   * valid with a delivery queue, and only for devices that are
+   * {@link #isDeliverable(Device)}.
+   *
+   * A message whose transport fails on the worker is stored for the
+   * device to fetch over its websocket, rather than dropped.
+   */
+  public void sendMessages(final Account account, Map<Device, OutgoingMessageSignal> messages)
+      throws DeliveryQueueFullException
+  {
+    Map<String, Runnable> deliveries = new LinkedHashMap<>();
+
+    for (final Map.Entry<Device, OutgoingMessageSignal> entry : messages.entrySet()) {
+      deliveries.put(account.getNumber() + "." + entry.getKey().getId(), new Runnable() {
+        @Override
+        public void run() {
+          deliverQueuedMessage(account, entry.getKey(), entry.getValue());
+        }
+      });
+    }
+
+    deliveryQueue.get().execute(deliveries);
+  }
+
+  /**
+   * Sends a signal that only matters to a device that can act on it now,
+   * like a prekey refill request.  It's marked as a receipt so APN never
+   * alerts for it, and it's never stored: a device that isn't reachable
+   * right now simply doesn't get it.  GCM devices get it through GCM,
+   * everyone else only over a connected websocket.
+   */
+  public void sendSignal(Account account, Device device, OutgoingMessageSignal signal)
+      throws NotPushRegisteredException
+  {
+    PendingMessage pendingMessage;
+
     try {
-      boolean                  isReceipt        = message.getType() == OutgoingMessageSignal.Type.RECEIPT_VALUE;
-      String                   signalingKey     = device.getSignalingKey();
-      EncryptedOutgoingMessage encryptedMessage = new EncryptedOutgoingMessage(message, signalingKey);
-      PendingMessage           pendingMessage   = new PendingMessage(message.getSource(),
-                                                                     message.getTimestamp(),
-                                                                     isReceipt,
-                                                                     encryptedMessage.serialize());
+      pendingMessage = getPendingMessage(account, device, signal);
+    } catch (CryptoEncodingException e) {
+      throw new NotPushRegisteredException(e);
+    }
 
-      sendMessage(account, device, pendingMessage);
+    if      (device.getGcmId() != null)   sendGcmMessage(account, device, pendingMessage);
+    else if (device.getApnId() != null)   webSocketSender.sendLiveMessage(account, device, pendingMessage);
+    else if (device.getFetchesMessages()) webSocketSender.sendLiveMessage(account, device, pendingMessage);
+    else                                  throw new NotPushRegisteredException("No delivery possible!");
+  }
+
+  public boolean isQueued() {
+    return deliveryQueue.isPresent();
+  }
+
+  public boolean isDeliverable(Device device) {
+    return device.getGcmId() != null || device.getApnId() != null || device.getFetchesMessages();
+  }
+
+  private void deliverMessage(Account account, Device device, OutgoingMessageSignal message)
+      throws NotPushRegisteredException, TransientPushFailureException
+  {
+    try {
+      sendMessage(account, device, getPendingMessage(account, device, message));
     } catch (CryptoEncodingException e) {
       throw new NotPushRegisteredException(e);
     }
   }
 
+  private void deliverQueuedMessage(Account account, Device device, OutgoingMessageSignal message) {
+    PendingMessage pendingMessage;
+
+    try {
+      pendingMessage = getPendingMessage(account, device, message);
+    } catch (CryptoEncodingException e) {
+      logger.warn("Unable to encrypt queued message", e);
+      return;
+    }
+
+    try {
+      sendMessage(account, device, pendingMessage);
+    } catch (NotPushRegisteredException | TransientPushFailureException | RuntimeException e) {
+      logger.warn("Queued delivery failed, storing for websocket", e);
+      fallbackMeter.mark();
+      webSocketSender.sendMessage(account, device, pendingMessage);
+    }
+  }
+
+  private PendingMessage getPendingMessage(Account account, Device device, OutgoingMessageSignal message)
+      throws CryptoEncodingException
+  {
+    boolean                  isReceipt        = message.getType() == OutgoingMessageSignal.Type.RECEIPT_VALUE ||
+                                                message.getType() == OutgoingMessageSignal.Type.PREKEY_REFILL_VALUE;
+    String                   signalingKey     = device.getSignalingKey();
+    EncryptedOutgoingMessage encryptedMessage = new EncryptedOutgoingMessage(message, account.getNumber(),
+                                                                             device.getId(), signalingKey);
+
+    return new PendingMessage(message.getSource(), message.getTimestamp(), isReceipt, encryptedMessage.serialize());
+  }
+
   public void sendMessage(Account account, Device device, PendingMessage pendingMessage)
       throws NotPushRegisteredException, TransientPushFailureException
   {
@@ -71,4 +71,26 @@ public class WebsocketSender {
       logger.warn("WebsocketSender", "Unable to serialize json", e);
     }
   }
+
+  /**
+   * Delivers to a connected websocket only, without storing the message
+   * when the device is offline.
+   *
+   * @return Whether a connected websocket received it.
+   */
+  public boolean sendLiveMessage(Account account, Device device, PendingMessage pendingMessage) {
+    try {
+      String           serialized = mapper.writeValueAsString(pendingMessage);
+      WebsocketAddress address    = new WebsocketAddress(account.getNumber(), device.getId());
+
+      if (pubSubManager.publish(address, new PubSubMessage(PubSubMessage.TYPE_DELIVER, serialized))) {
+        onlineMeter.mark();
+        return true;
+      }
+    } catch (JsonProcessingException e) {
+      logger.warn("WebsocketSender", "Unable to serialize json", e);
+    }
+
+    return false;
+  }
 }
@@ -33,6 +33,9 @@ public class Account implements Serializable {
   @JsonIgnore
   private long id;
 
+  @JsonIgnore
+  private long directorySequence;
+
   @JsonProperty
   private String number;
 
@@ -65,6 +68,18 @@ public class Account implements Serializable {
     this.id = id;
   }
 
+  /**
+   * @return Where the account's last write falls in the order incremental
+   *         directory updates read accounts in.
+   */
+  public long getDirectorySequence() {
+    return directorySequence;
+  }
+
+  public void setDirectorySequence(long directorySequence) {
+    this.directorySequence = directorySequence;
+  }
+
   public Optional<Device> getAuthenticatedDevice() {
     return authenticatedDevice;
   }
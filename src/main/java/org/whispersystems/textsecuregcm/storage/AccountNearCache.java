@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A bounded per-node cache of serialized accounts that sits in front of memcache.
+ *
+ * Entries are kept as the serialized JSON rather than as Account objects, since
+ * callers mutate the accounts they're handed (authenticated device, push IDs, etc).
+ * Invalidations are broadcast to the other nodes over redis pub/sub.
+ *
+ * A fill that races an invalidation must not leave the stale value behind,
+ * so callers read {@link #getGeneration(String)} before fetching from
+ * memcache and hand it back to {@link #put(String, String, long)}, which
+ * drops the value if the number has been invalidated in between.
+ */
+public class AccountNearCache implements PubSubListener {
+
+  public static final String INVALIDATION_CHANNEL = "ACCOUNT_INVALIDATE";
+
+  private static final int GENERATION_STRIPES = 4096;
+
+  private final Logger logger = LoggerFactory.getLogger(AccountNearCache.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          hitMeter       = metricRegistry.meter(name(getClass(), "hit"     ));
+  private final Meter          missMeter      = metricRegistry.meter(name(getClass(), "miss"    ));
+  private final Meter          evictionMeter  = metricRegistry.meter(name(getClass(), "eviction"));
+
+  private final PubSubManager         pubSubManager;
+  private final Cache<String, String> cache;
+  private final AtomicLongArray       generations = new AtomicLongArray(GENERATION_STRIPES);
+
+  public AccountNearCache(PubSubManager pubSubManager, int maxSize, int ttlSeconds) {
+    this.pubSubManager = pubSubManager;
+    this.cache         = CacheBuilder.newBuilder()
+                                     .maximumSize(maxSize)
+                                     .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                     .removalListener(new EvictionListener())
+                                     .build();
+
+    this.pubSubManager.subscribe(INVALIDATION_CHANNEL, this);
+  }
+
+  public Optional<String> get(String number) {
+    String serialized = cache.getIfPresent(number);
+
+    if (serialized != null) hitMeter.mark();
+    else                    missMeter.mark();
+
+    return Optional.fromNullable(serialized);
+  }
+
+  /**
+   * @return A token to pass to {@link #put(String, String, long)}, taken
+   *         before the value to be cached is read.
+   */
+  public long getGeneration(String number) {
+    return generations.get(getStripe(number));
+  }
+
+  public void put(String number, String serialized, long generation) {
+    cache.put(number, serialized);
+
+    // An invalidation bumps the generation before it removes the entry, so
+    // either it removed this put or the generation has already moved.
+    if (getGeneration(number) != generation) {
+      cache.asMap().remove(number, serialized);
+    }
+  }
+
+  public void invalidate(String number) {
+    expire(number);
+    pubSubManager.publish(INVALIDATION_CHANNEL, new PubSubMessage(PubSubMessage.TYPE_INVALIDATE_ACCOUNT, number));
+  }
+
+  @Override
+  public void onPubSubMessage(PubSubMessage message) {
+    if (message.getType() == PubSubMessage.TYPE_INVALIDATE_ACCOUNT) {
+      expire(message.getContents());
+    } else {
+      logger.warn("Unknown pubsub message: " + message.getType());
+    }
+  }
+
+  private void expire(String number) {
+    generations.incrementAndGet(getStripe(number));
+    cache.invalidate(number);
+  }
+
+  private int getStripe(String number) {
+    return Math.abs(number.hashCode() % GENERATION_STRIPES);
+  }
+
+  private class EvictionListener implements RemovalListener<String, String> {
+    @Override
+    public void onRemoval(RemovalNotification<String, String> notification) {
+      if (notification.wasEvicted()) {
+        evictionMeter.mark();
+      }
+    }
+  }
+}
@@ -48,9 +48,12 @@ import java.util.List;
 
 public abstract class Accounts {
 
-  private static final String ID     = "id";
-  private static final String NUMBER = "number";
-  private static final String DATA   = "data";
+  private static final String ID                 = "id";
+  private static final String NUMBER             = "number";
+  private static final String DATA               = "data";
+  private static final String DIRECTORY_SEQUENCE = "directory_sequence";
+
+  private static final String NEXT_DIRECTORY_SEQUENCE = "nextval('accounts_directory_sequence')";
 
   private static final ObjectMapper mapper = SystemMapper.getMapper();
 
@@ -61,7 +64,7 @@ public abstract class Accounts {
   @SqlUpdate("DELETE FROM accounts WHERE " + NUMBER + " = :number")
   abstract void removeAccount(@Bind("number") String number);
 
-  @SqlUpdate("UPDATE accounts SET " + DATA + " = CAST(:data AS json) WHERE " + NUMBER + " = :number")
+  @SqlUpdate("UPDATE accounts SET " + DATA + " = CAST(:data AS json), " + DIRECTORY_SEQUENCE + " = " + NEXT_DIRECTORY_SEQUENCE + " WHERE " + NUMBER + " = :number")
   abstract void update(@AccountBinder Account account);
 
   @Mapper(AccountMapper.class)
@@ -79,6 +82,20 @@ public abstract class Accounts {
   @SqlQuery("SELECT * FROM accounts")
   public abstract Iterator<Account> getAll();
 
+  @Mapper(AccountMapper.class)
+  @SqlQuery("SELECT * FROM accounts WHERE " + DIRECTORY_SEQUENCE + " > :sequence ORDER BY " + DIRECTORY_SEQUENCE + " LIMIT :limit")
+  abstract List<Account> getChangedSince(@Bind("sequence") long sequence, @Bind("limit") int limit);
+
+  @Mapper(AccountMapper.class)
+  @SqlQuery("SELECT * FROM accounts WHERE " + ID + " >= :start AND " + ID + " < :end")
+  abstract List<Account> getInIdRange(@Bind("start") long start, @Bind("end") long end);
+
+  @SqlQuery("SELECT COALESCE(MAX(" + ID + "), 0) FROM accounts")
+  abstract long getMaxId();
+
+  @SqlQuery("SELECT COALESCE(MAX(" + DIRECTORY_SEQUENCE + "), 0) FROM accounts")
+  abstract long getMaxDirectorySequence();
+
   @Transaction(TransactionIsolationLevel.SERIALIZABLE)
   public long create(Account account) {
     removeAccount(account.getNumber());
@@ -93,6 +110,7 @@ public abstract class Accounts {
       try {
         Account account = mapper.readValue(resultSet.getString(DATA), Account.class);
         account.setId(resultSet.getLong(ID));
+        account.setDirectorySequence(resultSet.getLong(DIRECTORY_SEQUENCE));
 
         return account;
       } catch (IOException e) {
@@ -37,18 +37,28 @@ public class AccountsManager {
 
   private final Logger logger = LoggerFactory.getLogger(AccountsManager.class);
 
-  private final Accounts         accounts;
-  private final MemcachedClient  memcachedClient;
-  private final DirectoryManager directory;
-  private final ObjectMapper     mapper;
+  private final Accounts                   accounts;
+  private final MemcachedClient            memcachedClient;
+  private final DirectoryManager           directory;
+  private final Optional<AccountNearCache> nearCache;
+  private final ObjectMapper               mapper;
 
   public AccountsManager(Accounts accounts,
                          DirectoryManager directory,
                          MemcachedClient memcachedClient)
+  {
+    this(accounts, directory, memcachedClient, Optional.<AccountNearCache>absent());
+  }
+
+  public AccountsManager(Accounts accounts,
+                         DirectoryManager directory,
+                         MemcachedClient memcachedClient,
+                         Optional<AccountNearCache> nearCache)
   {
     this.accounts        = accounts;
     this.directory       = directory;
     this.memcachedClient = memcachedClient;
+    this.nearCache       = nearCache;
     this.mapper          = SystemMapper.getMapper();
   }
 
@@ -64,15 +74,40 @@ public class AccountsManager {
     return accounts.getAll();
   }
 
+  /**
+   * @return Up to limit accounts written after the given directory
+   *         sequence, in sequence order.
+   */
+  public List<Account> getChangedSince(long directorySequence, int limit) {
+    return accounts.getChangedSince(directorySequence, limit);
+  }
+
+  /**
+   * @return The accounts with ids from start (inclusive) to end (exclusive).
+   */
+  public List<Account> getInIdRange(long start, long end) {
+    return accounts.getInIdRange(start, end);
+  }
+
+  public long getMaxId() {
+    return accounts.getMaxId();
+  }
+
+  public long getMaxDirectorySequence() {
+    return accounts.getMaxDirectorySequence();
+  }
+
   public void create(Account account) {
     accounts.create(account);
     memcacheSet(account.getNumber(), account);
+    nearCacheInvalidate(account.getNumber());
     updateDirectory(account);
   }
 
   public void update(Account account) {
     memcacheSet(account.getNumber(), account);
     accounts.update(account);
+    nearCacheInvalidate(account.getNumber());
     updateDirectory(account);
   }
 
@@ -122,11 +157,38 @@ public class AccountsManager {
     }
   }
 
+  private void nearCacheInvalidate(String number) {
+    if (nearCache.isPresent()) {
+      nearCache.get().invalidate(number);
+    }
+  }
+
+  private String nearCacheGet(String number) {
+    if (!nearCache.isPresent()) {
+      return (String)memcachedClient.get(getKey(number));
+    }
+
+    long             generation = nearCache.get().getGeneration(number);
+    Optional<String> json       = nearCache.get().get(number);
+
+    if (json.isPresent()) {
+      return json.get();
+    }
+
+    String fetched = (String)memcachedClient.get(getKey(number));
+
+    if (fetched != null) {
+      nearCache.get().put(number, fetched, generation);
+    }
+
+    return fetched;
+  }
+
   private Optional<Account> memcacheGet(String number) {
     if (memcachedClient == null) return Optional.absent();
 
     try {
-      String json = (String)memcachedClient.get(getKey(number));
+      String json = nearCacheGet(number);
 
       if (json != null) return Optional.of(mapper.readValue(json, Account.class));
       else              return Optional.absent();
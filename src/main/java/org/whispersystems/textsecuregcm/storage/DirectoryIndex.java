@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.common.base.Optional;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A per-node copy of the contact directory, so intersections can be
+ * answered without going to redis.
+ *
+ * Tokens are packed into parallel primitive arrays (the first eight bytes
+ * in a long, the last two in a short) and found by linear probing.  Each
+ * slot's value is a short holding a present bit, the SMS bit and an index
+ * into the table of relay names, with 0 meaning local.  Looking up a token
+ * doesn't allocate; only matches produce a ClientContact.
+ */
+public class DirectoryIndex {
+
+  public static final int TOKEN_LENGTH = 10;
+
+  private static final float LOAD_FACTOR  = 0.75f;
+  private static final int   MIN_CAPACITY = 16;
+
+  private static final int FLAG_PRESENT = 0x01;
+  private static final int FLAG_SMS     = 0x02;
+  private static final int RELAY_SHIFT  = 2;
+  private static final int MAX_RELAYS   = 1 << (16 - RELAY_SHIFT);
+
+  private final ReadWriteLock        lock     = new ReentrantReadWriteLock();
+  private final List<String>         relays   = new CopyOnWriteArrayList<>();
+  private final Map<String, Integer> relayIds = new HashMap<>();
+
+  private Table   table  = new Table(MIN_CAPACITY);
+  private boolean loaded = false;
+
+  public DirectoryIndex() {
+    relays.add(null);
+  }
+
+  public void put(ClientContact contact) {
+    if (contact.getToken().length != TOKEN_LENGTH) {
+      throw new IllegalArgumentException("Bad token length: " + contact.getToken().length);
+    }
+
+    short value = getValue(contact);
+
+    lock.writeLock().lock();
+    try {
+      table = table.put(getHigh(contact.getToken()), getLow(contact.getToken()), value);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(byte[] token) {
+    if (token.length != TOKEN_LENGTH) {
+      return;
+    }
+
+    lock.writeLock().lock();
+    try {
+      table.remove(getHigh(token), getLow(token));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public Optional<ClientContact> get(byte[] token) {
+    if (token.length != TOKEN_LENGTH) {
+      return Optional.absent();
+    }
+
+    lock.readLock().lock();
+    try {
+      int slot = table.find(getHigh(token), getLow(token));
+
+      if (slot < 0) return Optional.absent();
+      else          return Optional.of(getContact(token, table.values[slot]));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<ClientContact> get(List<byte[]> tokens) {
+    List<ClientContact> results = new LinkedList<>();
+
+    lock.readLock().lock();
+    try {
+      for (byte[] token : tokens) {
+        if (token.length != TOKEN_LENGTH) {
+          continue;
+        }
+
+        int slot = table.find(getHigh(token), getLow(token));
+
+        if (slot >= 0) {
+          results.add(getContact(token, table.values[slot]));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return results;
+  }
+
+  public void replaceAll(Collection<ClientContact> contacts) {
+    replaceAll(contacts, contacts.size());
+  }
+
+  /**
+   * Swaps in a table built from a full read of the directory.  The new table
+   * is built as the contacts are read and before the lock is taken, so
+   * readers aren't held up by it.
+   *
+   * @param expectedSize Sizes the new table; it still grows if this is short.
+   */
+  public void replaceAll(Iterable<ClientContact> contacts, int expectedSize) {
+    Table replacement = new Table(getCapacity(expectedSize));
+
+    for (ClientContact contact : contacts) {
+      if (contact.getToken().length == TOKEN_LENGTH) {
+        replacement = replacement.put(getHigh(contact.getToken()), getLow(contact.getToken()), getValue(contact));
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      table  = replacement;
+      loaded = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public boolean isLoaded() {
+    lock.readLock().lock();
+    try {
+      return loaded;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return table.size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private ClientContact getContact(byte[] token, short value) {
+    return new ClientContact(token, relays.get((value & 0xFFFF) >>> RELAY_SHIFT), (value & FLAG_SMS) != 0);
+  }
+
+  private short getValue(ClientContact contact) {
+    int value = FLAG_PRESENT | (getRelayId(contact.getRelay()) << RELAY_SHIFT);
+
+    if (contact.isSupportsSms()) {
+      value |= FLAG_SMS;
+    }
+
+    return (short)value;
+  }
+
+  private int getRelayId(String relay) {
+    if (relay == null) {
+      return 0;
+    }
+
+    synchronized (relayIds) {
+      Integer id = relayIds.get(relay);
+
+      if (id == null) {
+        if (relays.size() >= MAX_RELAYS) {
+          throw new IllegalStateException("Too many relays: " + relays.size());
+        }
+
+        id = relays.size();
+        relays.add(relay);
+        relayIds.put(relay, id);
+      }
+
+      return id;
+    }
+  }
+
+  private static long getHigh(byte[] token) {
+    long high = 0;
+
+    for (int i=0;i<8;i++) {
+      high = (high << 8) | (token[i] & 0xFF);
+    }
+
+    return high;
+  }
+
+  private static short getLow(byte[] token) {
+    return (short)(((token[8] & 0xFF) << 8) | (token[9] & 0xFF));
+  }
+
+  private static int getCapacity(int size) {
+    int capacity = MIN_CAPACITY;
+
+    while (capacity * LOAD_FACTOR < size) {
+      capacity <<= 1;
+    }
+
+    return capacity;
+  }
+
+  private static class Table {
+
+    private final long[]  high;
+    private final short[] low;
+    private final short[] values;
+    private final int     mask;
+    private final int     threshold;
+
+    private int size;
+
+    public Table(int capacity) {
+      this.high      = new long[capacity];
+      this.low       = new short[capacity];
+      this.values    = new short[capacity];
+      this.mask      = capacity - 1;
+      this.threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @return The slot holding the token, or -1 if it isn't present.
+     */
+    public int find(long tokenHigh, short tokenLow) {
+      for (int slot = getSlot(tokenHigh);values[slot] != 0;slot = (slot + 1) & mask) {
+        if (high[slot] == tokenHigh && low[slot] == tokenLow) {
+          return slot;
+        }
+      }
+
+      return -1;
+    }
+
+    /**
+     * @return This table, or a larger copy if it had to grow.
+     */
+    public Table put(long tokenHigh, short tokenLow, short value) {
+      int slot = getSlot(tokenHigh);
+
+      while (values[slot] != 0) {
+        if (high[slot] == tokenHigh && low[slot] == tokenLow) {
+          values[slot] = value;
+          return this;
+        }
+
+        slot = (slot + 1) & mask;
+      }
+
+      if (size >= threshold) {
+        return grow().put(tokenHigh, tokenLow, value);
+      }
+
+      high[slot]   = tokenHigh;
+      low[slot]    = tokenLow;
+      values[slot] = value;
+      size++;
+
+      return this;
+    }
+
+    /**
+     * Removes the token and shifts back any entries that probed past it,
+     * so lookups never need tombstones.
+     */
+    public void remove(long tokenHigh, short tokenLow) {
+      int hole = find(tokenHigh, tokenLow);
+
+      if (hole < 0) {
+        return;
+      }
+
+      values[hole] = 0;
+      size--;
+
+      for (int slot = (hole + 1) & mask;values[slot] != 0;slot = (slot + 1) & mask) {
+        int home = getSlot(high[slot]);
+
+        boolean reachable = hole <= slot ? (hole < home && home <= slot)
+                                         : (hole < home || home <= slot);
+
+        if (!reachable) {
+          high[hole]   = high[slot];
+          low[hole]    = low[slot];
+          values[hole] = values[slot];
+          values[slot] = 0;
+          hole         = slot;
+        }
+      }
+    }
+
+    private Table grow() {
+      Table grown = new Table(high.length << 1);
+
+      for (int slot=0;slot<values.length;slot++) {
+        if (values[slot] != 0) {
+          grown.put(high[slot], low[slot], values[slot]);
+        }
+      }
+
+      return grown;
+    }
+
+    private int getSlot(long tokenHigh) {
+      return (int)((tokenHigh * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+  }
+}
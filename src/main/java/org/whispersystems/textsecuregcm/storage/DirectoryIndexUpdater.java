@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Keeps a {@link DirectoryIndex} in step with the directory in redis.
+ *
+ * The index is loaded in full at startup and on a fixed interval.  In
+ * between, single token changes announced by {@link DirectoryManager} are
+ * re-read from redis and applied, and batch updates schedule a reload once
+ * they've been quiet for reloadDelaySeconds.  All of this happens on one
+ * thread, so a change announced while a reload is in progress is applied
+ * on top of the reloaded table rather than lost.
+ */
+public class DirectoryIndexUpdater implements Managed, PubSubListener {
+
+  private final Logger logger = LoggerFactory.getLogger(DirectoryIndexUpdater.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Timer          reloadTimer    = metricRegistry.timer(name(getClass(), "reload"));
+  private final Meter          changeMeter    = metricRegistry.meter(name(getClass(), "change"));
+
+  private final AtomicBoolean reloadPending = new AtomicBoolean(false);
+
+  private final DirectoryIndex           index;
+  private final DirectoryManager         directory;
+  private final PubSubManager            pubSubManager;
+  private final int                      reloadDelaySeconds;
+  private final int                      reloadIntervalMinutes;
+  private final ScheduledExecutorService executor;
+
+  public DirectoryIndexUpdater(final DirectoryIndex index, DirectoryManager directory,
+                               PubSubManager pubSubManager,
+                               int reloadDelaySeconds, int reloadIntervalMinutes)
+  {
+    this.index                 = index;
+    this.directory             = directory;
+    this.pubSubManager         = pubSubManager;
+    this.reloadDelaySeconds    = reloadDelaySeconds;
+    this.reloadIntervalMinutes = reloadIntervalMinutes;
+    this.executor              = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("DirectoryIndexUpdater")
+                                                                                                      .setDaemon(true)
+                                                                                                      .build());
+
+    metricRegistry.remove(name(getClass(), "size"));
+    metricRegistry.register(name(getClass(), "size"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return index.size();
+      }
+    });
+  }
+
+  @Override
+  public void start() {
+    pubSubManager.subscribe(DirectoryManager.UPDATE_CHANNEL, this);
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        reload();
+      }
+    }, 0, reloadIntervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @Override
+  public void stop() {
+    pubSubManager.unsubscribe(DirectoryManager.UPDATE_CHANNEL, this);
+    executor.shutdownNow();
+  }
+
+  @Override
+  public void onPubSubMessage(final PubSubMessage message) {
+    switch (message.getType()) {
+      case PubSubMessage.TYPE_DIRECTORY_CHANGE:
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            refresh(message.getContents());
+          }
+        });
+        break;
+      case PubSubMessage.TYPE_DIRECTORY_RELOAD:
+        if (reloadPending.compareAndSet(false, true)) {
+          executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+              reloadPending.set(false);
+              reload();
+            }
+          }, reloadDelaySeconds, TimeUnit.SECONDS);
+        }
+        break;
+      default:
+        logger.warn("Unknown pubsub message: " + message.getType());
+    }
+  }
+
+  private void reload() {
+    Timer.Context timer = reloadTimer.time();
+
+    try {
+      index.replaceAll(directory.getAll(), directory.size());
+      logger.info("Directory index reloaded: " + index.size() + " tokens");
+    } catch (RuntimeException e) {
+      logger.warn("Directory index reload failed", e);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private void refresh(String encodedToken) {
+    try {
+      byte[]                  token   = Base64.decodeWithoutPadding(encodedToken);
+      Optional<ClientContact> contact = directory.get(token);
+
+      if (contact.isPresent()) index.put(contact.get());
+      else                     index.remove(token);
+
+      changeMeter.mark();
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Directory index refresh failed", e);
+    }
+  }
+}
@@ -16,16 +16,25 @@
  */
 package org.whispersystems.textsecuregcm.storage;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
-import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
+import com.google.common.collect.AbstractIterator;
 import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.util.Base64;
 import org.whispersystems.textsecuregcm.util.IterablePair;
 import org.whispersystems.textsecuregcm.util.Pair;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.util.Util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -34,12 +43,42 @@ import redis.clients.jedis.Response;
 
 public class DirectoryManager {
 
+  /**
+   * Directory changes are announced here for nodes keeping a
+   * {@link DirectoryIndex}: single updates name the token that changed,
+   * batch updates ask for a reload.  Nothing is announced unless the
+   * index is enabled.
+   */
+  public static final String UPDATE_CHANNEL = "DIRECTORY_UPDATE";
+
   private static final byte[] DIRECTORY_KEY = {'d', 'i', 'r', 'e', 'c', 't', 'o', 'r', 'y'};
+  private static final String SYNC_SEQUENCE  = "directory_sync_sequence";
+  private static final String REBUILD        = "directory_rebuild";
+  private static final String REBUILD_CHUNKS = "directory_rebuild_chunks";
+
+  private static final byte[] SCAN_SCRIPT = "return redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])".getBytes();
+  private static final byte[] SCAN_START  = {'0'};
+  private static final byte[] SCAN_COUNT  = {'1', '0', '0', '0'};
 
-  private final JedisPool redisPool;
+  private static final ObjectMapper mapper = SystemMapper.getMapper();
+
+  private final JedisPool       redisPool;
+  private final TokenValueCodec codec;
+  private final boolean         publishUpdates;
 
   public DirectoryManager(JedisPool redisPool) {
-    this.redisPool = redisPool;
+    this(redisPool, false, false);
+  }
+
+  /**
+   * @param binaryValues   Write token values in the compact binary form.
+   *                       Both forms are always read.
+   * @param publishUpdates Announce changes on {@link #UPDATE_CHANNEL}.
+   */
+  public DirectoryManager(JedisPool redisPool, boolean binaryValues, boolean publishUpdates) {
+    this.redisPool      = redisPool;
+    this.codec          = new TokenValueCodec(binaryValues);
+    this.publishUpdates = publishUpdates;
   }
 
   public void remove(String number) {
@@ -53,32 +92,34 @@ public class DirectoryManager {
   public void remove(byte[] token) {
     Jedis jedis = redisPool.getResource();
     jedis.hdel(DIRECTORY_KEY, token);
+    publish(jedis, PubSubMessage.TYPE_DIRECTORY_CHANGE, token);
     redisPool.returnResource(jedis);
   }
 
   public void remove(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
     pipeline.hdel(DIRECTORY_KEY, token);
+    handle.modified = true;
   }
 
   public void add(ClientContact contact) {
-    TokenValue tokenValue = new TokenValue(contact.getRelay(), contact.isSupportsSms());
-    Jedis      jedis      = redisPool.getResource();
+    Jedis jedis = redisPool.getResource();
 
-    jedis.hset(DIRECTORY_KEY, contact.getToken(), new Gson().toJson(tokenValue).getBytes());
+    jedis.hset(DIRECTORY_KEY, contact.getToken(), codec.encode(contact.getRelay(), contact.isSupportsSms()));
+    publish(jedis, PubSubMessage.TYPE_DIRECTORY_CHANGE, contact.getToken());
     redisPool.returnResource(jedis);
   }
 
   public void add(BatchOperationHandle handle, ClientContact contact) {
-    Pipeline   pipeline   = handle.pipeline;
-    TokenValue tokenValue = new TokenValue(contact.getRelay(), contact.isSupportsSms());
+    Pipeline pipeline = handle.pipeline;
 
-    pipeline.hset(DIRECTORY_KEY, contact.getToken(), new Gson().toJson(tokenValue).getBytes());
+    pipeline.hset(DIRECTORY_KEY, contact.getToken(), codec.encode(contact.getRelay(), contact.isSupportsSms()));
+    handle.modified = true;
   }
 
   public PendingClientContact get(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
-    return new PendingClientContact(token, pipeline.hget(DIRECTORY_KEY, token));
+    return new PendingClientContact(codec, token, pipeline.hget(DIRECTORY_KEY, token));
   }
 
   public Optional<ClientContact> get(byte[] token) {
@@ -91,8 +132,7 @@ public class DirectoryManager {
         return Optional.absent();
       }
 
-      TokenValue tokenValue = new Gson().fromJson(new String(result), TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.supportsSms));
+      return Optional.of(codec.decode(token, result));
     } finally {
       redisPool.returnResource(jedis);
     }
@@ -118,10 +158,7 @@ public class DirectoryManager {
 
       for (Pair<byte[], Response<byte[]>> pair : lists) {
         if (pair.second().get() != null) {
-          TokenValue    tokenValue    = new Gson().fromJson(new String(pair.second().get()), TokenValue.class);
-          ClientContact clientContact = new ClientContact(pair.first(), tokenValue.relay, tokenValue.supportsSms);
-
-          results.add(clientContact);
+          results.add(codec.decode(pair.first(), pair.second().get()));
         }
       }
 
@@ -131,9 +168,131 @@ public class DirectoryManager {
     }
   }
 
+  /**
+   * Reads the whole directory for loading a {@link DirectoryIndex}.  It's
+   * fetched with HSCAN a page at a time as the iteration reaches it, so
+   * the directory is never held in memory as a whole.  An entry written
+   * during the scan may be returned twice, in either form.
+   */
+  public Iterable<ClientContact> getAll() {
+    return new Iterable<ClientContact>() {
+      @Override
+      public Iterator<ClientContact> iterator() {
+        return new ScanIterator();
+      }
+    };
+  }
+
+  public int size() {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      return jedis.hlen(DIRECTORY_KEY).intValue();
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  /**
+   * @return The last account directory sequence applied from the local
+   *         database, or absent if no sync has been recorded.
+   */
+  public Optional<Long> getSyncSequence() {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      String sequence = jedis.get(SYNC_SEQUENCE);
+
+      if (sequence == null) return Optional.absent();
+      else                  return Optional.of(Long.parseLong(sequence));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  public void setSyncSequence(long sequence) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      jedis.set(SYNC_SEQUENCE, String.valueOf(sequence));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  /**
+   * @return The state of an unfinished full rebuild, or absent if none
+   *         is in progress.
+   */
+  public Optional<RebuildProgress> getRebuildProgress() {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      List<String> state = jedis.hmget(REBUILD, "sequence", "chunkSize");
+
+      if (state.get(0) == null || state.get(1) == null) {
+        return Optional.absent();
+      }
+
+      Set<Long> completed = new HashSet<>();
+
+      for (String chunk : jedis.smembers(REBUILD_CHUNKS)) {
+        completed.add(Long.parseLong(chunk));
+      }
+
+      return Optional.of(new RebuildProgress(Long.parseLong(state.get(0)),
+                                             Integer.parseInt(state.get(1)),
+                                             completed));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  public void startRebuild(long sequence, int chunkSize) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      jedis.del(REBUILD_CHUNKS);
+      jedis.hset(REBUILD, "sequence", String.valueOf(sequence));
+      jedis.hset(REBUILD, "chunkSize", String.valueOf(chunkSize));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  public void setRebuildChunkComplete(long chunk) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      jedis.sadd(REBUILD_CHUNKS, String.valueOf(chunk));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  public void clearRebuild() {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      jedis.del(REBUILD, REBUILD_CHUNKS);
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
   public BatchOperationHandle startBatchOperation() {
+    return startBatchOperation(true);
+  }
+
+  /**
+   * @param announceReload Ask index nodes to reload once the batch is
+   *                       written.  A caller writing many batches can
+   *                       turn this off and call {@link #announceReload()}
+   *                       once at the end.
+   */
+  public BatchOperationHandle startBatchOperation(boolean announceReload) {
     Jedis jedis = redisPool.getResource();
-    return new BatchOperationHandle(jedis, jedis.pipelined());
+    return new BatchOperationHandle(jedis, jedis.pipelined(), announceReload);
   }
 
   public void stopBatchOperation(BatchOperationHandle handle) {
@@ -141,38 +300,139 @@ public class DirectoryManager {
     Jedis    jedis    = handle.jedis;
 
     pipeline.sync();
+
+    if (handle.modified && handle.announceReload) {
+      publish(jedis, PubSubMessage.TYPE_DIRECTORY_RELOAD, null);
+    }
+
     redisPool.returnResource(jedis);
   }
 
+  public void announceReload() {
+    if (!publishUpdates) {
+      return;
+    }
+
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      publish(jedis, PubSubMessage.TYPE_DIRECTORY_RELOAD, null);
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  private void publish(Jedis jedis, int type, byte[] token) {
+    if (publishUpdates) {
+      jedis.publish(UPDATE_CHANNEL, getUpdateMessage(type, token));
+    }
+  }
+
+  private static String getUpdateMessage(int type, byte[] token) {
+    try {
+      String contents = token == null ? null : Base64.encodeBytesWithoutPadding(token);
+      return mapper.writeValueAsString(new PubSubMessage(type, contents));
+    } catch (JsonProcessingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class ScanIterator extends AbstractIterator<ClientContact> {
+
+    private Iterator<ClientContact> page   = Collections.<ClientContact>emptyList().iterator();
+    private byte[]                  cursor = SCAN_START;
+    private boolean                 done   = false;
+
+    @Override
+    protected ClientContact computeNext() {
+      while (!page.hasNext()) {
+        if (done) {
+          return endOfData();
+        }
+
+        page = scan();
+      }
+
+      return page.next();
+    }
+
+    private Iterator<ClientContact> scan() {
+      Jedis jedis = redisPool.getResource();
+
+      try {
+        List<?>             result   = (List<?>)jedis.eval(SCAN_SCRIPT, Collections.singletonList(DIRECTORY_KEY),
+                                                           Arrays.asList(cursor, SCAN_COUNT));
+        List<?>             entries  = (List<?>)result.get(1);
+        List<ClientContact> contacts = new ArrayList<>(entries.size() / 2);
+
+        for (int i=0;i+1<entries.size();i+=2) {
+          contacts.add(codec.decode((byte[])entries.get(i), (byte[])entries.get(i + 1)));
+        }
+
+        cursor = (byte[])result.get(0);
+        done   = Arrays.equals(cursor, SCAN_START);
+
+        return contacts.iterator();
+      } finally {
+        redisPool.returnResource(jedis);
+      }
+    }
+  }
+
   public static class BatchOperationHandle {
 
     public final Pipeline pipeline;
     public final Jedis    jedis;
 
+    private final boolean announceReload;
+    private       boolean modified = false;
+
     public BatchOperationHandle(Jedis jedis, Pipeline pipeline) {
-      this.pipeline = pipeline;
-      this.jedis    = jedis;
+      this(jedis, pipeline, true);
+    }
+
+    public BatchOperationHandle(Jedis jedis, Pipeline pipeline, boolean announceReload) {
+      this.pipeline       = pipeline;
+      this.jedis          = jedis;
+      this.announceReload = announceReload;
     }
   }
 
-  private static class TokenValue {
-    @SerializedName("r")
-    private String  relay;
+  public static class RebuildProgress {
+
+    private final long      sequence;
+    private final int       chunkSize;
+    private final Set<Long> completedChunks;
+
+    public RebuildProgress(long sequence, int chunkSize, Set<Long> completedChunks) {
+      this.sequence        = sequence;
+      this.chunkSize       = chunkSize;
+      this.completedChunks = completedChunks;
+    }
 
-    @SerializedName("s")
-    private boolean supportsSms;
+    /**
+     * @return The account directory sequence read when the rebuild started.
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    public int getChunkSize() {
+      return chunkSize;
+    }
 
-    public TokenValue(String relay, boolean supportsSms) {
-      this.relay       = relay;
-      this.supportsSms = supportsSms;
+    public Set<Long> getCompletedChunks() {
+      return completedChunks;
     }
   }
 
   public static class PendingClientContact {
+    private final TokenValueCodec  codec;
     private final byte[]           token;
     private final Response<byte[]> response;
 
-    PendingClientContact(byte[] token, Response<byte[]> response) {
+    PendingClientContact(TokenValueCodec codec, byte[] token, Response<byte[]> response) {
+      this.codec    = codec;
       this.token    = token;
       this.response = response;
     }
@@ -184,8 +444,7 @@ public class DirectoryManager {
         return Optional.absent();
       }
 
-      TokenValue tokenValue = new Gson().fromJson(new String(result), TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.supportsSms));
+      return Optional.of(codec.decode(token, result));
     }
 
   }
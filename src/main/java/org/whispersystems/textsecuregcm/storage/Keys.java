@@ -24,11 +24,11 @@ import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.Binder;
 import org.skife.jdbi.v2.sqlobject.BinderFactory;
 import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
-import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Transaction;
 import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+import org.skife.jdbi.v2.tweak.Argument;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 import org.whispersystems.textsecuregcm.entities.PreKeyBase;
 import org.whispersystems.textsecuregcm.entities.PreKeyV1;
@@ -39,56 +39,129 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public abstract class Keys {
 
-  @SqlUpdate("DELETE FROM keys WHERE number = :number AND device_id = :device_id")
-  abstract void removeKeys(@Bind("number") String number, @Bind("device_id") long deviceId);
+  @SqlUpdate("DELETE FROM keys WHERE id = ANY(CAST(:ids AS bigint[]))")
+  abstract void removeKeys(@PreKeyArrayBinder List<KeyRecord> preKeys);
 
-  @SqlUpdate("DELETE FROM keys WHERE id = :id")
-  abstract void removeKey(@Bind("id") long id);
+  @SqlUpdate("INSERT INTO keys (number, device_id, key_id, public_key, last_resort) " +
+             "SELECT :number, :device_id, key_id, public_key, last_resort FROM " +
+             "unnest(CAST(:key_ids AS bigint[]), CAST(:public_keys AS text[]), CAST(:last_resorts AS smallint[])) " +
+             "AS uploaded (key_id, public_key, last_resort)")
+  abstract void append(@Bind("number") String number, @Bind("device_id") long deviceId,
+                       @PreKeyArrayBinder List<KeyRecord> preKeys);
 
-  @SqlBatch("INSERT INTO keys (number, device_id, key_id, public_key, last_resort) VALUES " +
-            "(:number, :device_id, :key_id, :public_key, :last_resort)")
-  abstract void append(@PreKeyBinder List<KeyRecord> preKeys);
+  @SqlQuery("SELECT 1 FROM pg_advisory_xact_lock(hashtext(:number), CAST(:device_id AS integer))")
+  abstract int lockDevice(@Bind("number") String number, @Bind("device_id") long deviceId);
 
-  @SqlQuery("SELECT * FROM keys WHERE number = :number AND device_id = :device_id ORDER BY key_id ASC FOR UPDATE")
+  @SqlQuery("SELECT * FROM keys WHERE number = :number AND device_id = :device_id")
   @Mapper(PreKeyMapper.class)
-  abstract KeyRecord retrieveFirst(@Bind("number") String number, @Bind("device_id") long deviceId);
+  abstract List<KeyRecord> retrieveAll(@Bind("number") String number, @Bind("device_id") long deviceId);
 
-  @SqlQuery("SELECT DISTINCT ON (number, device_id) * FROM keys WHERE number = :number ORDER BY number, device_id, key_id ASC")
+  @SqlQuery("DELETE FROM keys WHERE id = " +
+            "(SELECT id FROM keys WHERE number = :number AND device_id = :device_id AND last_resort = 0 " +
+            "ORDER BY key_id ASC LIMIT 1 FOR UPDATE SKIP LOCKED) RETURNING *")
   @Mapper(PreKeyMapper.class)
-  abstract List<KeyRecord> retrieveFirst(@Bind("number") String number);
+  abstract KeyRecord claimFirst(@Bind("number") String number, @Bind("device_id") long deviceId);
+
+  @SqlQuery("SELECT * FROM keys WHERE number = :number AND device_id = :device_id AND last_resort = 1")
+  @Mapper(PreKeyMapper.class)
+  abstract KeyRecord retrieveLastResort(@Bind("number") String number, @Bind("device_id") long deviceId);
+
+  @SqlQuery("WITH claimed AS (" +
+              "DELETE FROM keys WHERE id IN (" +
+                "SELECT claimable.id FROM (SELECT DISTINCT device_id FROM keys WHERE number = :number) devices, " +
+                "LATERAL (SELECT id FROM keys WHERE number = :number AND device_id = devices.device_id AND last_resort = 0 " +
+                         "ORDER BY key_id ASC LIMIT 1 FOR UPDATE SKIP LOCKED) claimable" +
+              ") RETURNING *" +
+            ") " +
+            "SELECT * FROM claimed UNION ALL " +
+            "SELECT * FROM keys WHERE number = :number AND last_resort = 1 " +
+            "AND device_id NOT IN (SELECT device_id FROM claimed) " +
+            "ORDER BY device_id")
+  @Mapper(PreKeyMapper.class)
+  abstract List<KeyRecord> claimFirst(@Bind("number") String number);
 
   @SqlQuery("SELECT COUNT(*) FROM keys WHERE number = :number AND device_id = :device_id")
   public abstract int getCount(@Bind("number") String number, @Bind("device_id") long deviceId);
 
-  @Transaction(TransactionIsolationLevel.SERIALIZABLE)
+  /**
+   * Replaces the device's keys with the uploaded set, as a diff: stored
+   * keys that weren't uploaded are deleted, uploaded keys that aren't
+   * already stored are inserted in one statement, and the rest are left
+   * alone.  Concurrent uploads for the same device are serialized on a
+   * transaction-scoped advisory lock, so two of them can't both diff
+   * against the same rows and insert the same keys twice.  Claims don't
+   * take the lock; rows are only touched by id, so a key claimed while the
+   * upload runs simply stays claimed.
+   */
+  @Transaction(TransactionIsolationLevel.READ_COMMITTED)
   public void store(String number, long deviceId, List<? extends PreKeyBase> keys, PreKeyBase lastResortKey) {
-    List<KeyRecord> records = new LinkedList<>();
+    Map<String, KeyRecord> stored   = new HashMap<>();
+    List<KeyRecord>        removed  = new LinkedList<>();
+    List<KeyRecord>        inserted = new LinkedList<>();
+    List<KeyRecord>        uploaded = new LinkedList<>();
 
     for (PreKeyBase key : keys) {
-      records.add(new KeyRecord(0, number, deviceId, key.getKeyId(), key.getPublicKey(), false));
+      uploaded.add(new KeyRecord(0, number, deviceId, key.getKeyId(), key.getPublicKey(), false));
+    }
+
+    uploaded.add(new KeyRecord(0, number, deviceId, lastResortKey.getKeyId(),
+                               lastResortKey.getPublicKey(), true));
+
+    lockDevice(number, deviceId);
+
+    for (KeyRecord record : retrieveAll(number, deviceId)) {
+      KeyRecord duplicate = stored.put(getDiffKey(record), record);
+
+      if (duplicate != null) {
+        removed.add(duplicate);
+      }
     }
 
-    records.add(new KeyRecord(0, number, deviceId, lastResortKey.getKeyId(),
-                              lastResortKey.getPublicKey(), true));
+    for (KeyRecord record : uploaded) {
+      KeyRecord existing = stored.remove(getDiffKey(record));
+
+      if (existing == null) {
+        inserted.add(record);
+      } else if (!existing.getPublicKey().equals(record.getPublicKey())) {
+        removed.add(existing);
+        inserted.add(record);
+      }
+    }
+
+    removed.addAll(stored.values());
+
+    if (!removed.isEmpty())  removeKeys(removed);
+    if (!inserted.isEmpty()) append(number, deviceId, inserted);
+  }
 
-    removeKeys(number, deviceId);
-    append(records);
+  private static String getDiffKey(KeyRecord record) {
+    return record.getKeyId() + (record.isLastResort() ? ".last" : "");
   }
 
-  @Transaction(TransactionIsolationLevel.SERIALIZABLE)
+  /**
+   * Claims a one-time prekey in a single statement, skipping rows another
+   * caller has locked so concurrent fetches each get a different key
+   * without waiting.  The last resort key is never removed, and is only
+   * handed out once the one-time keys are gone.
+   */
   public Optional<List<KeyRecord>> get(String number, long deviceId) {
-    final KeyRecord record = retrieveFirst(number, deviceId);
+    KeyRecord record = claimFirst(number, deviceId);
+
+    if (record == null) {
+      record = retrieveLastResort(number, deviceId);
+    }
 
-    if (record != null && !record.isLastResort()) {
-      removeKey(record.getId());
-    } else if (record == null) {
+    if (record == null) {
       return Optional.absent();
     }
 
@@ -98,45 +171,73 @@ public abstract class Keys {
     return Optional.of(results);
   }
 
-  @Transaction(TransactionIsolationLevel.SERIALIZABLE)
+  /**
+   * Claims one prekey for each of the number's devices in a single
+   * statement, the same way {@link #get(String, long)} does for one:
+   * a one-time key where one can be taken, otherwise the last resort key.
+   */
   public Optional<List<KeyRecord>> get(String number) {
-    List<KeyRecord> preKeys = retrieveFirst(number);
+    List<KeyRecord> preKeys = claimFirst(number);
 
-    if (preKeys != null) {
-      for (KeyRecord preKey : preKeys) {
-        if (!preKey.isLastResort()) {
-          removeKey(preKey.getId());
-        }
-      }
-    }
-
-    if (preKeys != null) return Optional.of(preKeys);
-    else                 return Optional.absent();
+    if (preKeys != null && !preKeys.isEmpty()) return Optional.of(preKeys);
+    else                                       return Optional.absent();
   }
 
-  @BindingAnnotation(PreKeyBinder.PreKeyBinderFactory.class)
+  /**
+   * Binds a list of keys as parallel arrays, for statements that touch
+   * every row at once.
+   */
+  @BindingAnnotation(PreKeyArrayBinder.PreKeyArrayBinderFactory.class)
   @Retention(RetentionPolicy.RUNTIME)
   @Target({ElementType.PARAMETER})
-  public @interface PreKeyBinder {
-    public static class PreKeyBinderFactory implements BinderFactory {
+  public @interface PreKeyArrayBinder {
+    public static class PreKeyArrayBinderFactory implements BinderFactory {
       @Override
       public Binder build(Annotation annotation) {
-        return new Binder<PreKeyBinder, KeyRecord>() {
+        return new Binder<PreKeyArrayBinder, List<KeyRecord>>() {
           @Override
-          public void bind(SQLStatement<?> sql, PreKeyBinder accountBinder, KeyRecord record)
+          public void bind(SQLStatement<?> sql, PreKeyArrayBinder arrayBinder, List<KeyRecord> records)
           {
-            sql.bind("id", record.getId());
-            sql.bind("number", record.getNumber());
-            sql.bind("device_id", record.getDeviceId());
-            sql.bind("key_id", record.getKeyId());
-            sql.bind("public_key", record.getPublicKey());
-            sql.bind("last_resort", record.isLastResort() ? 1 : 0);
+            Long[]    ids         = new Long[records.size()];
+            Long[]    keyIds      = new Long[records.size()];
+            String[]  publicKeys  = new String[records.size()];
+            Integer[] lastResorts = new Integer[records.size()];
+            int       index       = 0;
+
+            for (KeyRecord record : records) {
+              ids[index]         = record.getId();
+              keyIds[index]      = record.getKeyId();
+              publicKeys[index]  = record.getPublicKey();
+              lastResorts[index] = record.isLastResort() ? 1 : 0;
+              index++;
+            }
+
+            sql.bind("ids", new ArrayArgument("int8", ids));
+            sql.bind("key_ids", new ArrayArgument("int8", keyIds));
+            sql.bind("public_keys", new ArrayArgument("text", publicKeys));
+            sql.bind("last_resorts", new ArrayArgument("int2", lastResorts));
           }
         };
       }
     }
   }
 
+  private static class ArrayArgument implements Argument {
+    private final String   type;
+    private final Object[] elements;
+
+    public ArrayArgument(String type, Object[] elements) {
+      this.type     = type;
+      this.elements = elements;
+    }
+
+    @Override
+    public void apply(int position, PreparedStatement statement, StatementContext context)
+        throws SQLException
+    {
+      statement.setArray(position, statement.getConnection().createArrayOf(type, elements));
+    }
+  }
 
   public static class PreKeyMapper implements ResultSetMapper<KeyRecord> {
     @Override
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.entities.PreKeyBase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Keeps a redis counter of each device's stored prekeys alongside
+ * {@link Keys}, so clients polling their key count don't each run a
+ * COUNT(*).  Claims decrement the counter, and uploads drop it rather than
+ * overwrite it, so a claim that lands between the upload's commit and the
+ * redis write can't be lost.
+ *
+ * A missing counter is recounted from the database, but a recount is only
+ * cached if no claim for the number was running at any point while it was
+ * taken.  Otherwise a claim could commit its delete before the COUNT(*)
+ * and decrement the freshly primed counter afterwards, counting the same
+ * key twice.  Each claim bumps a per-number sequence and in-flight count
+ * before it touches the database, and drops the in-flight count once its
+ * decrements are done; the prime checks both against what it saw first.
+ *
+ * With a refill listener, a claim that takes a device's one-time keys
+ * below the refill threshold notifies it, once per crossing.  Claims
+ * against a missing counter recount it from the database so the signal
+ * isn't lost when the counter has expired.  The listener is called on the
+ * claiming request's thread and is expected to hand its work off; any
+ * failure it does throw is logged rather than failing the claim.
+ */
+public class KeysManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(KeysManager.class);
+
+  private static final int COUNT_TTL_SECONDS  = 24 * 60 * 60;
+  private static final int CLAIMS_TTL_SECONDS = 60;
+
+  private static final String START_CLAIM_SCRIPT =
+      "redis.call('HINCRBY', KEYS[1], 'seq', 1)\n" +
+      "redis.call('HINCRBY', KEYS[1], 'inflight', 1)\n" +
+      "redis.call('EXPIRE', KEYS[1], ARGV[1])\n";
+
+  private static final String FINISH_CLAIM_SCRIPT =
+      "local counts = {}\n" +
+      "for i = 2, #KEYS do\n" +
+      "  local key = KEYS[i]\n" +
+      "  if redis.call('EXISTS', key) == 1 then counts[i - 1] = redis.call('DECR', key) else counts[i - 1] = -1 end\n" +
+      "end\n" +
+      "if redis.call('EXISTS', KEYS[1]) == 1 then redis.call('HINCRBY', KEYS[1], 'inflight', -1) end\n" +
+      "return counts\n";
+
+  private static final String PRIME_SCRIPT =
+      "local claims = redis.call('HMGET', KEYS[2], 'seq', 'inflight')\n" +
+      "if (tonumber(claims[1]) or 0) ~= tonumber(ARGV[3]) or (tonumber(claims[2]) or 0) > 0 then return 0 end\n" +
+      "if redis.call('SETNX', KEYS[1], ARGV[1]) == 0 then return 0 end\n" +
+      "redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+      "return 1\n";
+
+  private final Keys                           keys;
+  private final JedisPool                      redisPool;
+  private final LuaScript                      startClaimScript;
+  private final LuaScript                      finishClaimScript;
+  private final LuaScript                      primeScript;
+  private final Optional<PreKeyRefillListener> refillListener;
+  private final int                            refillThreshold;
+
+  public KeysManager(Keys keys, JedisPool redisPool) {
+    this(keys, redisPool, Optional.<PreKeyRefillListener>absent(), 0);
+  }
+
+  /**
+   * @param refillThreshold Notify a device when a claim leaves it with
+   *                        fewer than this many one-time keys.
+   */
+  public KeysManager(Keys keys, JedisPool redisPool,
+                     Optional<PreKeyRefillListener> refillListener, int refillThreshold)
+  {
+    this.keys              = keys;
+    this.redisPool         = redisPool;
+    this.startClaimScript  = new LuaScript(redisPool, START_CLAIM_SCRIPT);
+    this.finishClaimScript = new LuaScript(redisPool, FINISH_CLAIM_SCRIPT);
+    this.primeScript       = new LuaScript(redisPool, PRIME_SCRIPT);
+    this.refillListener    = refillListener;
+    this.refillThreshold   = refillThreshold;
+  }
+
+  public void store(String number, long deviceId, List<? extends PreKeyBase> preKeys, PreKeyBase lastResortKey) {
+    keys.store(number, deviceId, preKeys, lastResortKey);
+    clearCount(number, deviceId);
+  }
+
+  public Optional<List<KeyRecord>> get(String number, long deviceId) {
+    Optional<List<KeyRecord>> preKeys = Optional.absent();
+
+    startClaim(number);
+
+    try {
+      preKeys = keys.get(number, deviceId);
+    } finally {
+      finishClaim(number, preKeys);
+    }
+
+    return preKeys;
+  }
+
+  public Optional<List<KeyRecord>> get(String number) {
+    Optional<List<KeyRecord>> preKeys = Optional.absent();
+
+    startClaim(number);
+
+    try {
+      preKeys = keys.get(number);
+    } finally {
+      finishClaim(number, preKeys);
+    }
+
+    return preKeys;
+  }
+
+  /**
+   * @return The number of keys stored for the device, including the
+   *         last resort key.
+   */
+  public int getCount(String number, long deviceId) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      String count = jedis.get(getCountKey(number, deviceId));
+
+      if (count != null) {
+        return Integer.parseInt(count);
+      }
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+
+    return recount(number, deviceId);
+  }
+
+  /**
+   * Caches a count taken from the database, if the counter is still
+   * missing and no claim for the number started or was running since
+   * claimSequence was read.
+   *
+   * @return Whether the counter was set.
+   */
+  private boolean primeCount(String number, long deviceId, int count, String claimSequence) {
+    Object result = primeScript.execute(Arrays.asList(getCountKey(number, deviceId), getClaimsKey(number)),
+                                        Arrays.asList(String.valueOf(count),
+                                                      String.valueOf(COUNT_TTL_SECONDS),
+                                                      claimSequence));
+
+    return Long.valueOf(1).equals(result);
+  }
+
+  private String getClaimSequence(String number) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      String sequence = jedis.hget(getClaimsKey(number), "seq");
+      return sequence == null ? "0" : sequence;
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  private void clearCount(String number, long deviceId) {
+    Jedis jedis = redisPool.getResource();
+
+    try {
+      jedis.del(getCountKey(number, deviceId));
+    } finally {
+      redisPool.returnResource(jedis);
+    }
+  }
+
+  private void startClaim(String number) {
+    startClaimScript.execute(Arrays.asList(getClaimsKey(number)),
+                             Arrays.asList(String.valueOf(CLAIMS_TTL_SECONDS)));
+  }
+
+  private void finishClaim(String number, Optional<List<KeyRecord>> claimed) {
+    List<String> scriptKeys = new LinkedList<>();
+    List<Long>   deviceIds  = new LinkedList<>();
+
+    scriptKeys.add(getClaimsKey(number));
+
+    if (claimed.isPresent()) {
+      for (KeyRecord record : claimed.get()) {
+        if (!record.isLastResort()) {
+          scriptKeys.add(getCountKey(number, record.getDeviceId()));
+          deviceIds.add(record.getDeviceId());
+        }
+      }
+    }
+
+    Object counts = finishClaimScript.execute(scriptKeys, Collections.<String>emptyList());
+
+    if (refillListener.isPresent() && counts instanceof List) {
+      Iterator<?>    countIterator    = ((List<?>)counts).iterator();
+      Iterator<Long> deviceIdIterator = deviceIds.iterator();
+
+      while (countIterator.hasNext() && deviceIdIterator.hasNext()) {
+        long count    = (Long)countIterator.next();
+        long deviceId = deviceIdIterator.next();
+
+        // The count includes the last resort key, so this is the claim that
+        // left refillThreshold - 1 one-time keys.  A missing counter (-1) was
+        // dropped by an upload or expired, so recount it; the claim is
+        // already committed.  Only the recount that primes the counter
+        // signals, so overlapping claims on a missing counter notify once,
+        // and the counter takes over from there.
+        if (count == -1) {
+          String  claimSequence = getClaimSequence(number);
+          int     recount       = keys.getCount(number, deviceId);
+          boolean primed        = primeCount(number, deviceId, recount, claimSequence);
+
+          if (primed && refillThreshold > 0 && recount <= refillThreshold) {
+            notifyPreKeysLow(number, deviceId);
+          }
+        } else if (refillThreshold > 0 && count == refillThreshold) {
+          notifyPreKeysLow(number, deviceId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the device's keys in the database, and primes the counter with
+   * the result if that's safe.
+   */
+  private int recount(String number, long deviceId) {
+    String claimSequence = getClaimSequence(number);
+    int    count = keys.getCount(number, deviceId);
+    primeCount(number, deviceId, count, claimSequence);
+
+    return count;
+  }
+
+  private void notifyPreKeysLow(String number, long deviceId) {
+    try {
+      refillListener.get().onPreKeysLow(number, deviceId);
+    } catch (RuntimeException e) {
+      logger.warn("Refill listener failed", e);
+    }
+  }
+
+  private String getCountKey(String number, long deviceId) {
+    return "prekey_count::" + number + "::" + deviceId;
+  }
+
+  private String getClaimsKey(String number) {
+    return "prekey_claims::" + number;
+  }
+}
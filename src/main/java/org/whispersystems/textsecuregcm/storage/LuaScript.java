@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A Lua script run on redis by its SHA1, so the script body is only sent
+ * when the server doesn't have it cached yet (first use, or after a
+ * restart or SCRIPT FLUSH).
+ */
+public class LuaScript {
+
+  private final JedisPool jedisPool;
+  private final String    script;
+  private final String    sha;
+
+  public static LuaScript fromResource(JedisPool jedisPool, String resource) throws IOException {
+    String script = Resources.toString(Resources.getResource(resource), Charsets.UTF_8);
+    return new LuaScript(jedisPool, script);
+  }
+
+  public LuaScript(JedisPool jedisPool, String script) {
+    this.jedisPool = jedisPool;
+    this.script    = script;
+    this.sha       = Hashing.sha1().hashString(script, Charsets.UTF_8).toString();
+  }
+
+  public Object execute(List<String> keys, List<String> args) {
+    Jedis jedis = null;
+
+    try {
+      jedis = jedisPool.getResource();
+
+      try {
+        return jedis.evalsha(sha, keys, args);
+      } catch (JedisDataException e) {
+        if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+          throw e;
+        }
+
+        return jedis.eval(script, keys, args);
+      }
+    } finally {
+      if (jedis != null)
+        jedisPool.returnResource(jedis);
+    }
+  }
+}
@@ -2,6 +2,8 @@ package org.whispersystems.textsecuregcm.storage;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.util.SystemMapper;
@@ -9,48 +11,120 @@ import org.whispersystems.textsecuregcm.websocket.InvalidWebsocketAddressExcepti
 import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPubSub;
 
-public class PubSubManager {
+/**
+ * Channels are spread across a fixed number of subscriber connections by
+ * hash, so each shard only carries a slice of the node's subscriptions.
+ * Incoming messages are handed to a set of single-threaded dispatchers,
+ * again chosen by channel hash, which keeps delivery for any one address
+ * in order while a slow listener only holds up the channels that share
+ * its dispatcher.
+ */
+public class PubSubManager implements Managed {
 
   private static final String KEEPALIVE_CHANNEL = "KEEPALIVE";
 
-  private final Logger                      logger       = LoggerFactory.getLogger(PubSubManager.class);
-  private final ObjectMapper                mapper       = SystemMapper.getMapper();
-  private final SubscriptionListener        baseListener = new SubscriptionListener();
-  private final Map<String, PubSubListener> listeners    = new HashMap<>();
+  private final Logger                                logger    = LoggerFactory.getLogger(PubSubManager.class);
+  private final ObjectMapper                          mapper    = SystemMapper.getMapper();
+  private final ConcurrentMap<String, PubSubListener> listeners = new ConcurrentHashMap<>();
 
-  private final JedisPool jedisPool;
-  private boolean subscribed = false;
+  private final JedisPool         jedisPool;
+  private final Shard[]           shards;
+  private final ExecutorService[] dispatchers;
+  private final Thread            keepAlive;
+
+  private volatile boolean stopped = false;
 
   public PubSubManager(final JedisPool jedisPool) {
-    this.jedisPool = jedisPool;
-    initializePubSubWorker();
-    waitForSubscription();
+    this(jedisPool, 1, 0);
   }
 
-  public synchronized void subscribe(WebsocketAddress address, PubSubListener listener) {
-    listeners.put(address.serialize(), listener);
-    baseListener.subscribe(address.serialize());
+  /**
+   * @param shardCount      The number of subscriber connections to hold open.
+   *                        Each one keeps a connection checked out of the pool.
+   * @param dispatchThreads The number of dispatch threads, or zero to deliver
+   *                        messages directly on the subscriber threads.
+   */
+  public PubSubManager(final JedisPool jedisPool, int shardCount, int dispatchThreads) {
+    this.jedisPool   = jedisPool;
+    this.shards      = new Shard[shardCount];
+    this.dispatchers = new ExecutorService[dispatchThreads];
+
+    for (int i=0;i<dispatchers.length;i++) {
+      dispatchers[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("PubSubDispatcher-" + i)
+                                                                                   .setDaemon(true)
+                                                                                   .build());
+    }
+
+    for (int i=0;i<shards.length;i++) {
+      shards[i] = new Shard(i);
+    }
+
+    keepAlive = initializeKeepAlive();
+
+    for (Shard shard : shards) {
+      shard.waitForSubscription();
+    }
   }
 
-  public synchronized void unsubscribe(WebsocketAddress address, PubSubListener listener) {
-    if (listeners.get(address.serialize()) == listener) {
-      listeners.remove(address.serialize());
-      baseListener.unsubscribe(address.serialize());
+  @Override
+  public void start() {}
+
+  /**
+   * Unsubscribes every shard so its connection goes back to the pool, and
+   * stops the keepalive and dispatch threads.  Subscription changes after
+   * this only update the listener registry.
+   */
+  @Override
+  public void stop() throws InterruptedException {
+    stopped = true;
+    keepAlive.interrupt();
+
+    for (Shard shard : shards) {
+      shard.stop();
+    }
+
+    for (ExecutorService dispatcher : dispatchers) {
+      dispatcher.shutdown();
+    }
+
+    for (ExecutorService dispatcher : dispatchers) {
+      dispatcher.awaitTermination(10, TimeUnit.SECONDS);
     }
+
+    keepAlive.join();
+  }
+
+  public void subscribe(WebsocketAddress address, PubSubListener listener) {
+    subscribe(address.serialize(), listener);
   }
 
-  public synchronized boolean publish(WebsocketAddress address, PubSubMessage message) {
+  public void subscribe(String channel, PubSubListener listener) {
+    getShard(channel).subscribe(channel, listener);
+  }
+
+  public void unsubscribe(WebsocketAddress address, PubSubListener listener) {
+    unsubscribe(address.serialize(), listener);
+  }
+
+  public void unsubscribe(String channel, PubSubListener listener) {
+    getShard(channel).unsubscribe(channel, listener);
+  }
+
+  public boolean publish(WebsocketAddress address, PubSubMessage message) {
     return publish(address.serialize(), message);
   }
 
-  private synchronized boolean publish(String channel, PubSubMessage message) {
+  public boolean publish(String channel, PubSubMessage message) {
     try {
       String serialized = mapper.writeValueAsString(message);
       Jedis  jedis      = null;
@@ -67,90 +141,156 @@ public class PubSubManager {
     }
   }
 
-  private synchronized void waitForSubscription() {
+  private Shard getShard(String channel) {
+    return shards[getIndex(channel, shards.length)];
+  }
+
+  private void dispatch(final String channel, final String message) {
+    if (dispatchers.length == 0) {
+      deliver(channel, message);
+    } else {
+      dispatchers[getIndex(channel, dispatchers.length)].execute(new Runnable() {
+        @Override
+        public void run() {
+          deliver(channel, message);
+        }
+      });
+    }
+  }
+
+  private void deliver(String channel, String message) {
     try {
-      while (!subscribed) {
-        wait();
+      PubSubListener listener = listeners.get(channel);
+
+      if (listener != null) {
+        listener.onPubSubMessage(mapper.readValue(message, PubSubMessage.class));
       }
-    } catch (InterruptedException e) {
-      throw new AssertionError(e);
+    } catch (IOException e) {
+      logger.warn("IOE", e);
     }
   }
 
-  private void initializePubSubWorker() {
-    new Thread("PubSubListener") {
-      @Override
-      public void run() {
-        for (;;) {
-          Jedis jedis = null;
-          try {
-            jedis = jedisPool.getResource();
-            jedis.subscribe(baseListener, KEEPALIVE_CHANNEL);
-            logger.warn("**** Unsubscribed from holding channel!!! ******");
-          } finally {
-            if (jedis != null)
-              jedisPool.returnResource(jedis);
-          }
-        }
-      }
-    }.start();
+  private static int getIndex(String channel, int count) {
+    return Math.abs(channel.hashCode() % count);
+  }
 
-    new Thread("PubSubKeepAlive") {
+  private Thread initializeKeepAlive() {
+    Thread thread = new Thread("PubSubKeepAlive") {
       @Override
       public void run() {
-        for (;;) {
+        while (!stopped) {
           try {
             Thread.sleep(20000);
             publish(KEEPALIVE_CHANNEL, new PubSubMessage(0, "foo"));
           } catch (InterruptedException e) {
-            throw new AssertionError(e);
+            if (!stopped) logger.warn("Keepalive interrupted", e);
           }
         }
       }
-    }.start();
+    };
+
+    thread.setDaemon(true);
+    thread.start();
+
+    return thread;
   }
 
-  private class SubscriptionListener extends JedisPubSub {
+  private class Shard {
 
-    @Override
-    public void onMessage(String channel, String message) {
-      try {
-        PubSubListener   listener;
+    private final SubscriptionListener baseListener = new SubscriptionListener();
+    private final Thread               thread;
 
-        synchronized (PubSubManager.this) {
-          listener = listeners.get(channel);
-        }
+    private boolean subscribed = false;
 
-        if (listener != null) {
-          listener.onPubSubMessage(mapper.readValue(message, PubSubMessage.class));
+    public Shard(int id) {
+      thread = new Thread("PubSubListener-" + id) {
+        @Override
+        public void run() {
+          while (!stopped) {
+            Jedis jedis = null;
+            try {
+              jedis = jedisPool.getResource();
+              jedis.subscribe(baseListener, KEEPALIVE_CHANNEL);
+              if (!stopped) logger.warn("**** Unsubscribed from holding channel!!! ******");
+            } finally {
+              if (jedis != null)
+                jedisPool.returnResource(jedis);
+            }
+          }
         }
-      } catch (IOException e) {
-        logger.warn("IOE", e);
+      };
+
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Subscription changes share the shard's one connection, so they're
+     * serialized against each other to keep the commands on the wire in the
+     * same order as the registry updates.  Publishing and message dispatch
+     * never take this lock.
+     */
+    public synchronized void subscribe(String channel, PubSubListener listener) {
+      listeners.put(channel, listener);
+      if (!stopped) baseListener.subscribe(channel);
+    }
+
+    public synchronized void unsubscribe(String channel, PubSubListener listener) {
+      if (listeners.remove(channel, listener) && !stopped) {
+        baseListener.unsubscribe(channel);
       }
     }
 
-    @Override
-    public void onPMessage(String s, String s2, String s3) {
-      logger.warn("Received PMessage!");
+    public void stop() throws InterruptedException {
+      synchronized (this) {
+        if (subscribed) baseListener.unsubscribe();
+      }
+
+      thread.join();
     }
 
-    @Override
-    public void onSubscribe(String channel, int count) {
-      if (KEEPALIVE_CHANNEL.equals(channel)) {
-        synchronized (PubSubManager.this) {
-          subscribed = true;
-          PubSubManager.this.notifyAll();
+    public synchronized void waitForSubscription() {
+      try {
+        while (!subscribed) {
+          wait();
         }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
       }
     }
 
-    @Override
-    public void onUnsubscribe(String s, int i) {}
+    private synchronized void setSubscribed() {
+      subscribed = true;
+      notifyAll();
+    }
 
-    @Override
-    public void onPUnsubscribe(String s, int i) {}
+    private class SubscriptionListener extends JedisPubSub {
 
-    @Override
-    public void onPSubscribe(String s, int i) {}
+      @Override
+      public void onMessage(String channel, String message) {
+        dispatch(channel, message);
+      }
+
+      @Override
+      public void onPMessage(String s, String s2, String s3) {
+        logger.warn("Received PMessage!");
+      }
+
+      @Override
+      public void onSubscribe(String channel, int count) {
+        if (KEEPALIVE_CHANNEL.equals(channel)) {
+          setSubscribed();
+        }
+      }
+
+      @Override
+      public void onUnsubscribe(String s, int i) {}
+
+      @Override
+      public void onPUnsubscribe(String s, int i) {}
+
+      @Override
+      public void onPSubscribe(String s, int i) {}
+    }
   }
 }
@@ -6,8 +6,11 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class PubSubMessage {
 
-  public static final int TYPE_QUERY_DB = 1;
-  public static final int TYPE_DELIVER  = 2;
+  public static final int TYPE_QUERY_DB           = 1;
+  public static final int TYPE_DELIVER            = 2;
+  public static final int TYPE_INVALIDATE_ACCOUNT = 3;
+  public static final int TYPE_DIRECTORY_CHANGE   = 4;
+  public static final int TYPE_DIRECTORY_RELOAD   = 5;
 
   @JsonProperty
   private int type;
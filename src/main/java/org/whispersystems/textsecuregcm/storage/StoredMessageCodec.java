@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes queued PendingMessages for storage in redis.
+ *
+ * The binary envelope is:
+ *
+ * <pre>
+ * version (1) | flags (1) | messageId (8) | sender length (2) | sender | ciphertext
+ * </pre>
+ *
+ * where the ciphertext is stored as raw bytes rather than Base64.  Entries
+ * written in the original JSON format start with '{' and are still readable.
+ */
+public class StoredMessageCodec {
+
+  public  static final byte VERSION_BINARY = 0x01;
+  private static final byte FLAG_RECEIPT   = 0x01;
+  private static final int  HEADER_SIZE    = 1 + 1 + 8 + 2;
+
+  private static final Charset      UTF8   = Charset.forName("UTF-8");
+  private static final ObjectMapper mapper = SystemMapper.getMapper();
+
+  public static byte[] encode(PendingMessage message) throws JsonProcessingException {
+    byte[] ciphertext = getCiphertext(message.getEncryptedOutgoingMessage());
+
+    if (ciphertext == null || message.getSender() == null) {
+      return mapper.writeValueAsBytes(message);
+    }
+
+    byte[] sender = message.getSender().getBytes(UTF8);
+
+    if (sender.length > 0xFFFF) {
+      return mapper.writeValueAsBytes(message);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sender.length + ciphertext.length);
+    buffer.put(VERSION_BINARY);
+    buffer.put(message.isReceipt() ? FLAG_RECEIPT : 0);
+    buffer.putLong(message.getMessageId());
+    buffer.putShort((short)sender.length);
+    buffer.put(sender);
+    buffer.put(ciphertext);
+
+    return buffer.array();
+  }
+
+  public static PendingMessage decode(byte[] serialized) throws IOException {
+    if (serialized.length == 0) {
+      throw new IOException("Empty message");
+    }
+
+    if (serialized[0] != VERSION_BINARY) {
+      return mapper.readValue(serialized, PendingMessage.class);
+    }
+
+    try {
+      ByteBuffer buffer       = ByteBuffer.wrap(serialized, 1, serialized.length - 1);
+      byte       flags        = buffer.get();
+      long       messageId    = buffer.getLong();
+      int        senderLength = buffer.getShort() & 0xFFFF;
+      byte[]     sender       = new byte[senderLength];
+
+      buffer.get(sender);
+
+      String ciphertext = Base64.encodeBytes(serialized, buffer.position(), buffer.remaining());
+
+      return new PendingMessage(new String(sender, UTF8), messageId,
+                                (flags & FLAG_RECEIPT) != 0, ciphertext);
+    } catch (BufferUnderflowException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Returns the raw ciphertext, or null if the encoded form can't be
+   * reproduced exactly from it (so the JSON envelope has to be used).
+   */
+  private static byte[] getCiphertext(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+
+    try {
+      byte[] ciphertext = Base64.decode(encoded, Base64.DONT_GUNZIP);
+
+      if (Base64.encodeBytes(ciphertext).equals(encoded)) return ciphertext;
+      else                                                 return null;
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
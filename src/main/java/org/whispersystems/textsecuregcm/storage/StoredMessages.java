@@ -20,38 +20,81 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.dropwizard.lifecycle.Managed;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.PendingMessage;
 import org.whispersystems.textsecuregcm.util.Constants;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
-public class StoredMessages {
+public class StoredMessages implements Managed {
 
   private static final Logger logger = LoggerFactory.getLogger(StoredMessages.class);
 
   private final MetricRegistry metricRegistry     = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Histogram      queueSizeHistogram = metricRegistry.histogram(name(getClass(), "queue_size"));
+  private final Histogram      batchSizeHistogram = metricRegistry.histogram(name(getClass(), "batch_size"));
 
 
-  private static final ObjectMapper mapper = SystemMapper.getMapper();
-  private static final String QUEUE_PREFIX = "msgs";
+  private static final String QUEUE_PREFIX   = "msgs";
+  private static final int    MAX_QUEUE_SIZE = 1000;
 
-  private final JedisPool jedisPool;
+  private static final int FLUSH_TIMEOUT_MILLIS = 5000;
+
+  private final JedisPool               jedisPool;
+  private final Optional<InsertBatcher> batcher;
 
   public StoredMessages(JedisPool jedisPool) {
+    this(jedisPool, 0, 1);
+  }
+
+  public StoredMessages(JedisPool jedisPool, int batchWindowMillis, int maxBatchSize) {
     this.jedisPool = jedisPool;
+
+    if (batchWindowMillis > 0) {
+      this.batcher = Optional.of(new InsertBatcher(batchWindowMillis, maxBatchSize));
+      this.batcher.get().start();
+    } else {
+      this.batcher = Optional.absent();
+    }
+  }
+
+  @Override
+  public void start() {}
+
+  /**
+   * Writes out anything the batcher still has queued and stops it.  Inserts
+   * after this are written directly.
+   */
+  @Override
+  public void stop() throws InterruptedException {
+    if (batcher.isPresent()) {
+      batcher.get().shutdown();
+    }
   }
 
   public void clear(WebsocketAddress address) {
@@ -67,38 +110,82 @@ public class StoredMessages {
   }
 
   public void insert(WebsocketAddress address, PendingMessage message) {
+    if (batcher.isPresent()) {
+      batcher.get().insert(address, message);
+    } else {
+      insertDirect(address, message);
+    }
+  }
+
+  private void insertDirect(WebsocketAddress address, PendingMessage message) {
+    Map<WebsocketAddress, List<PendingMessage>> messages = new HashMap<>();
+    messages.put(address, Collections.singletonList(message));
+
+    insertAll(messages);
+  }
+
+  public void insertAll(Map<WebsocketAddress, List<PendingMessage>> messages) {
     Jedis jedis = null;
 
     try {
       jedis = jedisPool.getResource();
 
-      String serializedMessage = mapper.writeValueAsString(message);
-      long   queueSize         = jedis.lpush(getKey(address), serializedMessage);
-      queueSizeHistogram.update(queueSize);
+      Pipeline             pipeline   = jedis.pipelined();
+      List<Response<Long>> queueSizes = new LinkedList<>();
+
+      for (Map.Entry<WebsocketAddress, List<PendingMessage>> entry : messages.entrySet()) {
+        List<byte[]> serialized = new ArrayList<>(entry.getValue().size());
+
+        for (PendingMessage message : entry.getValue()) {
+          try {
+            serialized.add(StoredMessageCodec.encode(message));
+          } catch (JsonProcessingException e) {
+            logger.warn("StoredMessages", "Unable to store correctly", e);
+          }
+        }
+
+        if (!serialized.isEmpty()) {
+          byte[] key = getKey(entry.getKey());
 
-      if (queueSize > 1000) {
-        jedis.ltrim(getKey(address), 0, 999);
+          queueSizes.add(pipeline.lpush(key, serialized.toArray(new byte[0][])));
+          pipeline.ltrim(key, 0, MAX_QUEUE_SIZE - 1);
+        }
       }
 
-    } catch (JsonProcessingException e) {
-      logger.warn("StoredMessages", "Unable to store correctly", e);
+      pipeline.sync();
+
+      for (Response<Long> queueSize : queueSizes) {
+        queueSizeHistogram.update(queueSize.get());
+      }
     } finally {
       if (jedis != null)
         jedisPool.returnResource(jedis);
     }
   }
 
-  public List<PendingMessage> getMessagesForDevice(WebsocketAddress address) {
-    List<PendingMessage> messages = new LinkedList<>();
-    Jedis                jedis    = null;
+  /**
+   * Atomically removes and returns up to <tt>limit</tt> of the oldest messages
+   * queued for an address, oldest first.
+   */
+  public List<PendingMessage> getMessagesForDevice(WebsocketAddress address, int limit) {
+    Jedis jedis = null;
 
     try {
       jedis = jedisPool.getResource();
-      String message;
 
-      while ((message = jedis.rpop(getKey(address))) != null) {
+      byte[]                 key         = getKey(address);
+      Transaction            transaction = jedis.multi();
+      Response<List<byte[]>> page        = transaction.lrange(key, -limit, -1);
+
+      transaction.ltrim(key, 0, -limit - 1);
+      transaction.exec();
+
+      List<byte[]>         serialized = page.get();
+      List<PendingMessage> messages   = new ArrayList<>(serialized.size());
+
+      for (int i=serialized.size()-1;i>=0;i--) {
         try {
-          messages.add(mapper.readValue(message, PendingMessage.class));
+          messages.add(StoredMessageCodec.decode(serialized.get(i)));
         } catch (IOException e) {
           logger.warn("StoredMessages", "Not a valid PendingMessage", e);
         }
@@ -111,8 +198,193 @@ public class StoredMessages {
     }
   }
 
-  private String getKey(WebsocketAddress address) {
-    return QUEUE_PREFIX + ":" + address.serialize();
+  private byte[] getKey(WebsocketAddress address) {
+    return (QUEUE_PREFIX + ":" + address.serialize()).getBytes();
+  }
+
+  /**
+   * Coalesces inserts from concurrent request threads into a single pipelined
+   * write.  Callers block until the batch containing their message is flushed,
+   * so a message is always queued before the caller notifies the recipient.
+   *
+   * A caller waits at most batchWindowMillis + FLUSH_TIMEOUT_MILLIS.  If the
+   * batcher hasn't picked its message up by then (or has stopped or died),
+   * the caller withdraws it and writes it directly, so a stuck batcher slows
+   * inserts down rather than hanging every sending thread.
+   */
+  private class InsertBatcher extends Thread {
+
+    private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+
+    private final int batchWindowMillis;
+    private final int maxBatchSize;
+
+    private volatile boolean stopped = false;
+
+    InsertBatcher(int batchWindowMillis, int maxBatchSize) {
+      super("StoredMessagesBatcher");
+      setDaemon(true);
+
+      this.batchWindowMillis = batchWindowMillis;
+      this.maxBatchSize      = maxBatchSize;
+    }
+
+    public void insert(WebsocketAddress address, PendingMessage message) {
+      if (stopped || !isAlive()) {
+        insertDirect(address, message);
+        return;
+      }
+
+      PendingInsert pendingInsert = new PendingInsert(address, message);
+      queue.add(pendingInsert);
+
+      if (!pendingInsert.await(batchWindowMillis + FLUSH_TIMEOUT_MILLIS)) {
+        logger.warn("Batcher didn't flush in time, inserting directly");
+        insertDirect(address, message);
+      }
+    }
+
+    /**
+     * Flushes whatever is queued and waits for the batcher to exit.
+     */
+    public void shutdown() throws InterruptedException {
+      stopped = true;
+      interrupt();
+      join();
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        List<PendingInsert> batch = new LinkedList<>();
+
+        try {
+          takeBatch(batch);
+        } catch (InterruptedException e) {
+          // Stopping; flush what was taken below.
+        }
+
+        flush(batch);
+      }
+
+      List<PendingInsert> remaining = new LinkedList<>();
+      queue.drainTo(remaining);
+      flush(remaining);
+    }
+
+    private void takeBatch(List<PendingInsert> batch) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + batchWindowMillis;
+
+      batch.add(queue.take());
+
+      while (batch.size() < maxBatchSize) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+          queue.drainTo(batch, maxBatchSize - batch.size());
+          break;
+        }
+
+        PendingInsert next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+
+        if (next == null) break;
+        else              batch.add(next);
+      }
+    }
+
+    private void flush(List<PendingInsert> batch) {
+      Map<WebsocketAddress, List<PendingMessage>> messages = new LinkedHashMap<>();
+      List<PendingInsert>                         claimed  = new LinkedList<>();
+
+      for (PendingInsert pendingInsert : batch) {
+        if (!pendingInsert.claim()) {
+          continue;
+        }
+
+        List<PendingMessage> destination = messages.get(pendingInsert.address);
+
+        if (destination == null) {
+          destination = new LinkedList<>();
+          messages.put(pendingInsert.address, destination);
+        }
+
+        destination.add(pendingInsert.message);
+        claimed.add(pendingInsert);
+      }
+
+      if (claimed.isEmpty()) {
+        return;
+      }
+
+      RuntimeException failure = new IllegalStateException("Batch insert didn't complete");
+
+      try {
+        batchSizeHistogram.update(claimed.size());
+        insertAll(messages);
+        failure = null;
+      } catch (RuntimeException e) {
+        logger.warn("Batch insert failed", e);
+        failure = e;
+      } finally {
+        for (PendingInsert pendingInsert : claimed) {
+          pendingInsert.complete(failure);
+        }
+      }
+    }
+  }
+
+  private static class PendingInsert {
+    private static final int PENDING   = 0;
+    private static final int CLAIMED   = 1;
+    private static final int WITHDRAWN = 2;
+
+    private final CountDownLatch   latch = new CountDownLatch(1);
+    private final AtomicInteger    state = new AtomicInteger(PENDING);
+    private final WebsocketAddress address;
+    private final PendingMessage   message;
+
+    private volatile RuntimeException failure;
+
+    PendingInsert(WebsocketAddress address, PendingMessage message) {
+      this.address = address;
+      this.message = message;
+    }
+
+    /**
+     * @return false if the caller has already given up on the batcher.
+     */
+    boolean claim() {
+      return state.compareAndSet(PENDING, CLAIMED);
+    }
+
+    void complete(RuntimeException failure) {
+      this.failure = failure;
+      this.latch.countDown();
+    }
+
+    /**
+     * @return false if the batcher didn't pick the message up in time, in
+     *         which case it's been withdrawn and the caller must store it.
+     */
+    boolean await(long timeoutMillis) {
+      if (!Uninterruptibles.awaitUninterruptibly(latch, timeoutMillis, TimeUnit.MILLISECONDS)) {
+        if (state.compareAndSet(PENDING, WITHDRAWN)) {
+          return false;
+        }
+
+        // Already part of a batch that's being written, whose own redis
+        // timeouts bound the wait.
+        Uninterruptibles.awaitUninterruptibly(latch);
+      }
+
+      RuntimeException failure = this.failure;
+
+      if (failure != null) {
+        throw failure;
+      }
+
+      return true;
+    }
   }
 
-}
\ No newline at end of file
+}
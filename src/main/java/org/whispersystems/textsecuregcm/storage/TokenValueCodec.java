@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2014 Open WhisperSystems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes the value stored for each token in the redis directory.
+ *
+ * The binary form is one flag byte, followed by the relay name in UTF-8
+ * when the contact is on a federated peer.  The flag byte always has its
+ * high bit set, so it can't be confused with the original JSON values
+ * (which start with '{') and both are read during a migration.  Relay
+ * names are interned, so decoding a contact from a known peer doesn't
+ * allocate a new String.
+ */
+public class TokenValueCodec {
+
+  private static final byte FLAG_BINARY = (byte)0x80;
+  private static final byte FLAG_SMS    = 0x01;
+  private static final byte FLAG_RELAY  = 0x02;
+
+  private static final int     MAX_RELAYS = 64;
+  private static final Charset UTF8       = Charset.forName("UTF-8");
+
+  private final Gson    gson   = new Gson();
+  private final boolean binary;
+
+  private volatile Relay[] relays = new Relay[0];
+
+  /**
+   * @param binary Write the binary form.  Leave this off until every node
+   *               reading the directory can decode it.
+   */
+  public TokenValueCodec(boolean binary) {
+    this.binary = binary;
+  }
+
+  public byte[] encode(String relay, boolean supportsSms) {
+    if (!binary) {
+      return gson.toJson(new TokenValue(relay, supportsSms)).getBytes();
+    }
+
+    byte flags = (byte)(FLAG_BINARY | (supportsSms ? FLAG_SMS : 0));
+
+    if (relay == null) {
+      return new byte[] {flags};
+    }
+
+    byte[] name    = getRelay(relay).encoded;
+    byte[] encoded = new byte[1 + name.length];
+
+    encoded[0] = (byte)(flags | FLAG_RELAY);
+    System.arraycopy(name, 0, encoded, 1, name.length);
+
+    return encoded;
+  }
+
+  public ClientContact decode(byte[] token, byte[] value) {
+    if (value.length == 0 || (value[0] & FLAG_BINARY) == 0) {
+      TokenValue tokenValue = gson.fromJson(new String(value), TokenValue.class);
+      return new ClientContact(token, tokenValue.relay, tokenValue.supportsSms);
+    }
+
+    String relay = null;
+
+    if ((value[0] & FLAG_RELAY) != 0) {
+      relay = getRelay(value, 1, value.length - 1);
+    }
+
+    return new ClientContact(token, relay, (value[0] & FLAG_SMS) != 0);
+  }
+
+  private Relay getRelay(String name) {
+    for (Relay relay : relays) {
+      if (relay.name.equals(name)) return relay;
+    }
+
+    return intern(new Relay(name, name.getBytes(UTF8)));
+  }
+
+  private String getRelay(byte[] value, int offset, int length) {
+    for (Relay relay : relays) {
+      if (relay.matches(value, offset, length)) return relay.name;
+    }
+
+    return intern(new Relay(new String(value, offset, length, UTF8),
+                            Arrays.copyOfRange(value, offset, offset + length))).name;
+  }
+
+  private synchronized Relay intern(Relay relay) {
+    for (Relay existing : relays) {
+      if (existing.name.equals(relay.name)) return existing;
+    }
+
+    if (relays.length < MAX_RELAYS) {
+      Relay[] interned = Arrays.copyOf(relays, relays.length + 1);
+      interned[relays.length] = relay;
+      relays = interned;
+    }
+
+    return relay;
+  }
+
+  private static class Relay {
+    private final String name;
+    private final byte[] encoded;
+
+    public Relay(String name, byte[] encoded) {
+      this.name    = name;
+      this.encoded = encoded;
+    }
+
+    public boolean matches(byte[] value, int offset, int length) {
+      if (encoded.length != length) {
+        return false;
+      }
+
+      for (int i=0;i<length;i++) {
+        if (encoded[i] != value[offset + i]) return false;
+      }
+
+      return true;
+    }
+  }
+
+  private static class TokenValue {
+    @SerializedName("r")
+    private String  relay;
+
+    @SerializedName("s")
+    private boolean supportsSms;
+
+    public TokenValue(String relay, boolean supportsSms) {
+      this.relay       = relay;
+      this.supportsSms = supportsSms;
+    }
+  }
+}
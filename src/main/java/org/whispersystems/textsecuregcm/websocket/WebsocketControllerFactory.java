@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.auth.AccountAuthenticator;
 import org.whispersystems.textsecuregcm.controllers.WebsocketController;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
 import org.whispersystems.textsecuregcm.push.PushSender;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.PubSubManager;
@@ -24,6 +25,9 @@ public class WebsocketControllerFactory extends WebSocketServlet implements WebS
   private final PubSubManager        pubSubManager;
   private final AccountAuthenticator accountAuthenticator;
   private final AccountsManager      accounts;
+  private final int                  pageSize;
+  private final int                  maxUnacknowledgedMessages;
+  private final FanOutExecutor       fanOutExecutor;
 
   public WebsocketControllerFactory(AccountAuthenticator accountAuthenticator,
                                     AccountsManager      accounts,
@@ -31,11 +35,40 @@ public class WebsocketControllerFactory extends WebSocketServlet implements WebS
                                     StoredMessages       storedMessages,
                                     PubSubManager        pubSubManager)
   {
-    this.accountAuthenticator = accountAuthenticator;
-    this.accounts             = accounts;
-    this.pushSender           = pushSender;
-    this.storedMessages       = storedMessages;
-    this.pubSubManager        = pubSubManager;
+    this(accountAuthenticator, accounts, pushSender, storedMessages, pubSubManager,
+         WebsocketController.DEFAULT_PAGE_SIZE,
+         WebsocketController.DEFAULT_MAX_UNACKNOWLEDGED_MESSAGES);
+  }
+
+  public WebsocketControllerFactory(AccountAuthenticator accountAuthenticator,
+                                    AccountsManager      accounts,
+                                    PushSender           pushSender,
+                                    StoredMessages       storedMessages,
+                                    PubSubManager        pubSubManager,
+                                    int                  pageSize,
+                                    int                  maxUnacknowledgedMessages)
+  {
+    this(accountAuthenticator, accounts, pushSender, storedMessages, pubSubManager,
+         pageSize, maxUnacknowledgedMessages, new FanOutExecutor());
+  }
+
+  public WebsocketControllerFactory(AccountAuthenticator accountAuthenticator,
+                                    AccountsManager      accounts,
+                                    PushSender           pushSender,
+                                    StoredMessages       storedMessages,
+                                    PubSubManager        pubSubManager,
+                                    int                  pageSize,
+                                    int                  maxUnacknowledgedMessages,
+                                    FanOutExecutor       fanOutExecutor)
+  {
+    this.accountAuthenticator      = accountAuthenticator;
+    this.accounts                  = accounts;
+    this.pushSender                = pushSender;
+    this.storedMessages            = storedMessages;
+    this.pubSubManager             = pubSubManager;
+    this.pageSize                  = pageSize;
+    this.maxUnacknowledgedMessages = maxUnacknowledgedMessages;
+    this.fanOutExecutor            = fanOutExecutor;
   }
 
   @Override
@@ -45,6 +78,7 @@ public class WebsocketControllerFactory extends WebSocketServlet implements WebS
 
   @Override
   public Object createWebSocket(UpgradeRequest upgradeRequest, UpgradeResponse upgradeResponse) {
-    return new WebsocketController(accountAuthenticator, accounts,  pushSender, pubSubManager, storedMessages);
+    return new WebsocketController(accountAuthenticator, accounts,  pushSender, pubSubManager, storedMessages,
+                                   pageSize, maxUnacknowledgedMessages, fanOutExecutor);
   }
 }
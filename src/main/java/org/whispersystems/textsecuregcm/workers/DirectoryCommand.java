@@ -16,18 +16,26 @@
  */
 package org.whispersystems.textsecuregcm.workers;
 
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Slf4jReporter;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
 import net.spy.memcached.MemcachedClient;
 import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.WhisperServerConfiguration;
+import org.whispersystems.textsecuregcm.configuration.DirectoryConfiguration;
 import org.whispersystems.textsecuregcm.federation.FederatedClientManager;
 import org.whispersystems.textsecuregcm.providers.MemcachedClientFactory;
 import org.whispersystems.textsecuregcm.providers.RedisClientFactory;
 import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.concurrent.TimeUnit;
 
 import io.dropwizard.cli.ConfiguredCommand;
 import io.dropwizard.db.DataSourceFactory;
@@ -46,6 +54,15 @@ public class DirectoryCommand extends ConfiguredCommand<WhisperServerConfigurati
     super("directory", "Update directory from DB and peers.");
   }
 
+  @Override
+  public void configure(Subparser subparser) {
+    super.configure(subparser);
+    subparser.addArgument("--full")
+             .dest("full")
+             .action(Arguments.storeTrue())
+             .help("Rewrite every local account rather than only those changed since the last run.");
+  }
+
   @Override
   protected void run(Bootstrap<WhisperServerConfiguration> bootstrap,
                      Namespace namespace,
@@ -61,16 +78,28 @@ public class DirectoryCommand extends ConfiguredCommand<WhisperServerConfigurati
       dbi.registerContainerFactory(new ImmutableSetContainerFactory());
       dbi.registerContainerFactory(new OptionalContainerFactory());
 
+      DirectoryConfiguration directoryConfig        = config.getDirectoryConfiguration();
       Accounts               accounts               = dbi.onDemand(Accounts.class);
       MemcachedClient        memcachedClient        = new MemcachedClientFactory(config.getMemcacheConfiguration()).getClient();
       JedisPool              redisClient            = new RedisClientFactory(config.getRedisConfiguration()).getRedisClientPool();
-      DirectoryManager       directory              = new DirectoryManager(redisClient);
+      DirectoryManager       directory              = new DirectoryManager(redisClient, directoryConfig.isBinaryValues(),
+                                                                           config.getDirectoryIndexConfiguration().isEnabled());
       AccountsManager        accountsManager        = new AccountsManager(accounts, directory, memcachedClient);
       FederatedClientManager federatedClientManager = new FederatedClientManager(config.getFederationConfiguration());
+      DirectoryUpdater       update                 = new DirectoryUpdater(accountsManager, federatedClientManager, directory,
+                                                                           directoryConfig.getRebuildChunkSize(),
+                                                                           directoryConfig.getRebuildThreads(),
+                                                                           directoryConfig.getRebuildFlushSize(),
+                                                                           directoryConfig.getSyncLagWindow());
+
+      Slf4jReporter.forRegistry(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME))
+                   .outputTo(logger)
+                   .build()
+                   .start(30, TimeUnit.SECONDS);
 
-      DirectoryUpdater update = new DirectoryUpdater(accountsManager, federatedClientManager, directory);
+      if (namespace.getBoolean("full")) update.updateFromLocalDatabase();
+      else                              update.updateChangesFromLocalDatabase();
 
-      update.updateFromLocalDatabase();
       update.updateFromPeers();
     } catch (Exception ex) {
       logger.warn("Directory Exception", ex);
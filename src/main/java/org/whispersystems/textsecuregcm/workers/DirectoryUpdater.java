@@ -16,6 +16,10 @@
  */
 package org.whispersystems.textsecuregcm.workers;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,60 +30,250 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager.BatchOperationHandle;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager.RebuildProgress;
 import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.Constants;
 import org.whispersystems.textsecuregcm.util.Util;
 
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
 
 import static org.whispersystems.textsecuregcm.storage.DirectoryManager.PendingClientContact;
 
 public class DirectoryUpdater {
 
-  private final Logger logger = LoggerFactory.getLogger(DirectoryUpdater.class);
+  private static final int CHUNK_SIZE = 1000;
+
+  private final Logger         logger         = LoggerFactory.getLogger(DirectoryUpdater.class);
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          rebuiltMeter   = metricRegistry.meter(name(DirectoryUpdater.class, "rebuiltAccounts"));
 
   private final AccountsManager        accountsManager;
   private final FederatedClientManager federatedClientManager;
   private final DirectoryManager       directory;
+  private final int                    rebuildChunkSize;
+  private final int                    rebuildThreads;
+  private final int                    rebuildFlushSize;
+  private final int                    syncLagWindow;
 
   public DirectoryUpdater(AccountsManager accountsManager,
                           FederatedClientManager federatedClientManager,
                           DirectoryManager directory)
+  {
+    this(accountsManager, federatedClientManager, directory, 10000, 4, 1000, 10000);
+  }
+
+  /**
+   * @param rebuildChunkSize The number of account ids in each range of a full rebuild.
+   * @param rebuildThreads   The number of ranges rebuilt at once.
+   * @param rebuildFlushSize The number of directory writes per redis pipeline.
+   * @param syncLagWindow    The number of sequence values behind the last sync
+   *                         that an incremental update re-scans.
+   */
+  public DirectoryUpdater(AccountsManager accountsManager,
+                          FederatedClientManager federatedClientManager,
+                          DirectoryManager directory,
+                          int rebuildChunkSize, int rebuildThreads, int rebuildFlushSize,
+                          int syncLagWindow)
   {
     this.accountsManager        = accountsManager;
     this.federatedClientManager = federatedClientManager;
     this.directory              = directory;
+    this.rebuildChunkSize       = rebuildChunkSize;
+    this.rebuildThreads         = rebuildThreads;
+    this.rebuildFlushSize       = rebuildFlushSize;
+    this.syncLagWindow          = syncLagWindow;
+  }
+
+  /**
+   * Applies only the accounts written since the last recorded sync, falling
+   * back to a full reconciliation if no sync has been recorded yet or an
+   * earlier one didn't finish.
+   *
+   * A sequence value is taken when an account is written but only becomes
+   * visible when that transaction commits, so a slow writer can commit
+   * below a mark that has already been recorded.  Each run re-applies the
+   * last syncLagWindow sequence values to pick those up; re-applying an
+   * entry is harmless.
+   */
+  public void updateChangesFromLocalDatabase() {
+    Optional<Long> syncSequence = directory.getSyncSequence();
+
+    if (!syncSequence.isPresent() || directory.getRebuildProgress().isPresent()) {
+      logger.info("No complete directory sync recorded, running full update.");
+      updateFromLocalDatabase();
+      return;
+    }
+
+    long mark     = syncSequence.get();
+    long sequence = Math.max(0, mark - syncLagWindow);
+    int  updated  = 0;
+
+    for (;;) {
+      List<Account> accounts = accountsManager.getChangedSince(sequence, CHUNK_SIZE);
+
+      if (accounts.isEmpty()) {
+        break;
+      }
+
+      BatchOperationHandle batchOperation = directory.startBatchOperation(false);
+
+      try {
+        for (Account account : accounts) {
+          update(batchOperation, account);
+        }
+      } finally {
+        directory.stopBatchOperation(batchOperation);
+      }
+
+      sequence = accounts.get(accounts.size() - 1).getDirectorySequence();
+      updated += accounts.size();
+
+      if (sequence > mark) {
+        mark = sequence;
+        directory.setSyncSequence(mark);
+      }
+    }
+
+    if (updated > 0) {
+      directory.announceReload();
+    }
+
+    logger.info("Local directory is updated, " + updated + " changed accounts applied.");
   }
 
+  /**
+   * Rewrites the directory entry for every local account.  This is the
+   * recovery path: it also picks up any writes the incremental update
+   * missed, such as ones committed after a later sequence was read.
+   *
+   * The accounts table is split into id ranges that are rebuilt in
+   * parallel, each recorded in redis as it completes so that a rebuild
+   * which dies part way through resumes with the ranges that remain.
+   */
   public void updateFromLocalDatabase() {
-    BatchOperationHandle batchOperation = directory.startBatchOperation();
+    Optional<RebuildProgress> progress = directory.getRebuildProgress();
+    long                      sequence;
+    Set<Long>                 completed;
 
-    try {
-      Iterator<Account> accounts = accountsManager.getAll();
+    if (progress.isPresent() && progress.get().getChunkSize() == rebuildChunkSize) {
+      sequence  = progress.get().getSequence();
+      completed = progress.get().getCompletedChunks();
 
-      if (accounts == null)
-        return;
+      logger.info("Resuming directory rebuild, " + completed.size() + " chunks already complete.");
+    } else {
+      sequence  = accountsManager.getMaxDirectorySequence();
+      completed = new HashSet<>();
 
-      while (accounts.hasNext()) {
-        Account account = accounts.next();
+      directory.startRebuild(sequence, rebuildChunkSize);
+    }
 
-        if (account.isActive()) {
-          byte[]        token         = Util.getContactToken(account.getNumber());
-          ClientContact clientContact = new ClientContact(token, null, account.getSupportsSms());
+    long       chunks         = accountsManager.getMaxId() / rebuildChunkSize + 1;
+    AtomicLong completedCount = new AtomicLong(completed.size());
 
-          directory.add(batchOperation, clientContact);
+    registerProgressGauge(completedCount, chunks);
 
-          logger.debug("Adding local token: " + Base64.encodeBytesWithoutPadding(token));
-        } else {
-          directory.remove(batchOperation, account.getNumber());
+    ForkJoinPool pool = new ForkJoinPool(rebuildThreads);
+
+    try {
+      pool.invoke(new RebuildTask(0, chunks, completed, completedCount));
+    } finally {
+      pool.shutdown();
+    }
+
+    directory.setSyncSequence(sequence);
+    directory.clearRebuild();
+    directory.announceReload();
+
+    logger.info(String.format("Local directory is updated, %d accounts at %.1f accounts/sec.",
+                              rebuiltMeter.getCount(), rebuiltMeter.getMeanRate()));
+  }
+
+  private void rebuildChunk(long chunk) {
+    List<Account>        accounts       = accountsManager.getInIdRange(chunk * rebuildChunkSize,
+                                                                       (chunk + 1) * rebuildChunkSize);
+    BatchOperationHandle batchOperation = directory.startBatchOperation(false);
+    int                  pending        = 0;
+
+    try {
+      for (Account account : accounts) {
+        update(batchOperation, account);
+        rebuiltMeter.mark();
+
+        if (++pending >= rebuildFlushSize) {
+          directory.stopBatchOperation(batchOperation);
+          batchOperation = directory.startBatchOperation(false);
+          pending        = 0;
         }
       }
     } finally {
       directory.stopBatchOperation(batchOperation);
     }
 
-    logger.info("Local directory is updated.");
+    directory.setRebuildChunkComplete(chunk);
+  }
+
+  private void registerProgressGauge(final AtomicLong completedCount, final long chunks) {
+    String name = name(DirectoryUpdater.class, "rebuildProgress");
+
+    metricRegistry.remove(name);
+    metricRegistry.register(name, new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return (double)completedCount.get() / chunks;
+      }
+    });
+  }
+
+  private void update(BatchOperationHandle batchOperation, Account account) {
+    if (account.isActive()) {
+      byte[]        token         = Util.getContactToken(account.getNumber());
+      ClientContact clientContact = new ClientContact(token, null, account.getSupportsSms());
+
+      directory.add(batchOperation, clientContact);
+
+      logger.debug("Adding local token: " + Base64.encodeBytesWithoutPadding(token));
+    } else {
+      directory.remove(batchOperation, account.getNumber());
+    }
+  }
+
+  private class RebuildTask extends RecursiveAction {
+
+    private final long       startChunk;
+    private final long       endChunk;
+    private final Set<Long>  completed;
+    private final AtomicLong completedCount;
+
+    public RebuildTask(long startChunk, long endChunk, Set<Long> completed, AtomicLong completedCount) {
+      this.startChunk     = startChunk;
+      this.endChunk       = endChunk;
+      this.completed      = completed;
+      this.completedCount = completedCount;
+    }
+
+    @Override
+    protected void compute() {
+      if (endChunk - startChunk > 1) {
+        long middle = startChunk + (endChunk - startChunk) / 2;
+
+        invokeAll(new RebuildTask(startChunk, middle, completed, completedCount),
+                  new RebuildTask(middle, endChunk, completed, completedCount));
+      } else if (!completed.contains(startChunk)) {
+        rebuildChunk(startChunk);
+        completedCount.incrementAndGet();
+
+        logger.debug("Rebuilt directory chunk " + startChunk + ", " + completedCount.get() + " complete.");
+      }
+    }
   }
 
   public void updateFromPeers() {
@@ -116,7 +310,7 @@ public class DirectoryUpdater {
 
         directory.stopBatchOperation(handle);
 
-        handle = directory.startBatchOperation();
+        handle = directory.startBatchOperation(false);
         Iterator<ClientContact>        remoteContactIterator = remoteContacts.iterator();
         Iterator<PendingClientContact> localContactIterator  = localContacts.iterator();
 
@@ -146,6 +340,10 @@ public class DirectoryUpdater {
       logger.info("Update from peer complete.");
     }
 
+    if (contactsAdded > 0 || contactsRemoved > 0) {
+      directory.announceReload();
+    }
+
     logger.info("Update from peer directories complete.");
     logger.info(String.format("Added %d and removed %d remove contacts.", contactsAdded, contactsRemoved));
   }
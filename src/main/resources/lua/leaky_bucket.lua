@@ -0,0 +1,36 @@
+-- Atomically checks and fills a leaky bucket stored as a hash.
+--
+-- KEYS[1]  the bucket
+-- ARGV[1]  bucket size
+-- ARGV[2]  leak rate per millisecond
+-- ARGV[3]  amount to add, or a negative amount to give back
+-- ARGV[4]  current time in milliseconds
+-- ARGV[5]  expiry in seconds
+--
+-- Returns 1 if the amount fit, 0 if the limit is exceeded.
+
+local bucketSize        = tonumber(ARGV[1])
+local leakRatePerMillis = tonumber(ARGV[2])
+local amount            = tonumber(ARGV[3])
+local now               = tonumber(ARGV[4])
+local expiry            = tonumber(ARGV[5])
+
+local bucket  = redis.call("HMGET", KEYS[1], "space", "updated")
+local space   = tonumber(bucket[1])
+local updated = tonumber(bucket[2])
+
+if space == nil or updated == nil then
+  space   = bucketSize
+  updated = now
+end
+
+space = math.min(bucketSize, space + math.max(0, now - updated) * leakRatePerMillis)
+
+if space < amount then
+  return 0
+end
+
+redis.call("HMSET", KEYS[1], "space", math.min(bucketSize, space - amount), "updated", now)
+redis.call("EXPIRE", KEYS[1], expiry)
+
+return 1
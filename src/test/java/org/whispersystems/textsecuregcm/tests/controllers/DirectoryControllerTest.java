@@ -1,5 +1,7 @@
 package org.whispersystems.textsecuregcm.tests.controllers;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.jersey.api.client.ClientResponse;
 import org.junit.Before;
 import org.junit.ClassRule;
@@ -8,9 +10,12 @@ import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.whispersystems.textsecuregcm.controllers.DirectoryController;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
 import org.whispersystems.textsecuregcm.entities.ClientContactTokens;
 import org.whispersystems.textsecuregcm.limits.RateLimiter;
 import org.whispersystems.textsecuregcm.limits.RateLimiters;
+import org.whispersystems.textsecuregcm.mappers.RateLimitExceededExceptionMapper;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
 import org.whispersystems.textsecuregcm.tests.util.AuthHelper;
 import org.whispersystems.textsecuregcm.util.Base64;
@@ -21,8 +26,13 @@ import java.util.List;
 
 import io.dropwizard.testing.junit.ResourceTestRule;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DirectoryControllerTest {
@@ -34,6 +44,7 @@ public class DirectoryControllerTest {
   @Rule
   public final ResourceTestRule resources = ResourceTestRule.builder()
                                                             .addProvider(AuthHelper.getAuthenticator())
+                                                            .addProvider(new RateLimitExceededExceptionMapper())
                                                             .addResource(new DirectoryController(rateLimiters,
                                                                                                  directoryManager))
                                                             .build();
@@ -77,4 +88,66 @@ public class DirectoryControllerTest {
     assertThat(response.getStatus()).isEqualTo(200);
     assertThat(response.getEntity(ClientContactTokens.class).getContacts()).isEqualTo(expectedResponse);
   }
+
+  @Test
+  public void testStreamingContactIntersection() throws Exception {
+    List<String> tokens = new LinkedList<>();
+
+    for (int i=0;i<2500;i++) {
+      tokens.add(Base64.encodeBytesWithoutPadding(("token" + i).getBytes()));
+    }
+
+    when(directoryManager.get(anyList())).thenAnswer(new Answer<List<ClientContact>>() {
+      @Override
+      public List<ClientContact> answer(InvocationOnMock invocationOnMock) throws Throwable {
+        List<byte[]>        query    = (List<byte[]>) invocationOnMock.getArguments()[0];
+        List<ClientContact> response = new LinkedList<>();
+
+        for (int i=0;i<query.size();i+=2) {
+          response.add(new ClientContact(query.get(i), null, false));
+        }
+
+        return response;
+      }
+    });
+
+    ClientResponse response =
+        resources.client().resource("/v1/directory/tokens/stream")
+                 .entity(new ClientContactTokens(tokens))
+                 .type(MediaType.APPLICATION_JSON_TYPE)
+                 .header("Authorization",
+                         AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER,
+                                                  AuthHelper.VALID_PASSWORD))
+                 .put(ClientResponse.class);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    JsonNode contacts = new ObjectMapper().readTree(response.getEntity(String.class)).get("contacts");
+
+    assertThat(contacts.size()).isEqualTo(1250);
+    assertThat(contacts.get(0).get("token").asText()).isEqualTo(tokens.get(0));
+    assertThat(contacts.get(500).get("token").asText()).isEqualTo(tokens.get(1000));
+
+    verify(rateLimiter, times(2)).validate(AuthHelper.VALID_NUMBER, 1000);
+    verify(rateLimiter).validate(AuthHelper.VALID_NUMBER, 500);
+  }
+
+  @Test
+  public void testStreamingContactIntersectionRateLimited() throws Exception {
+    doThrow(new RateLimitExceededException(AuthHelper.VALID_NUMBER)).when(rateLimiter).validate(anyString(), anyInt());
+
+    List<String> tokens = new LinkedList<>();
+    tokens.add(Base64.encodeBytesWithoutPadding("foo".getBytes()));
+
+    ClientResponse response =
+        resources.client().resource("/v1/directory/tokens/stream")
+                 .entity(new ClientContactTokens(tokens))
+                 .type(MediaType.APPLICATION_JSON_TYPE)
+                 .header("Authorization",
+                         AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER,
+                                                  AuthHelper.VALID_PASSWORD))
+                 .put(ClientResponse.class);
+
+    assertThat(response.getStatus()).isEqualTo(413);
+  }
 }
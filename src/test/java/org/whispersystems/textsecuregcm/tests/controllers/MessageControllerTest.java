@@ -6,6 +6,7 @@ import com.sun.jersey.api.client.ClientResponse;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.controllers.MessageController;
 import org.whispersystems.textsecuregcm.entities.IncomingMessageList;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
@@ -23,6 +24,7 @@ import org.whispersystems.textsecuregcm.tests.util.AuthHelper;
 import javax.ws.rs.core.MediaType;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import io.dropwizard.testing.junit.ResourceTestRule;
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -153,6 +155,28 @@ public class MessageControllerTest {
     verify(pushSender, times(2)).sendMessage(any(Account.class), any(Device.class), any(MessageProtos.OutgoingMessageSignal.class));
   }
 
+  @Test
+  public synchronized void testMultiDeviceQueued() throws Exception {
+    when(pushSender.isQueued()).thenReturn(true);
+    when(pushSender.isDeliverable(any(Device.class))).thenReturn(true);
+
+    ClientResponse response =
+        resources.client().resource(String.format("/v1/messages/%s", MULTI_DEVICE_RECIPIENT))
+            .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+            .entity(mapper.readValue(jsonFixture("fixtures/current_message_multi_device.json"), IncomingMessageList.class))
+            .type(MediaType.APPLICATION_JSON_TYPE)
+            .put(ClientResponse.class);
+
+    assertThat("Good Response Code", response.getStatus(), is(equalTo(204)));
+
+    ArgumentCaptor<Map> queued = ArgumentCaptor.forClass(Map.class);
+
+    verify(pushSender).sendMessages(any(Account.class), queued.capture());
+    verify(pushSender, never()).sendMessage(any(Account.class), any(Device.class), any(MessageProtos.OutgoingMessageSignal.class));
+
+    assertThat(queued.getValue().size(), is(equalTo(2)));
+  }
+
   @Test
   public synchronized void testRegistrationIdMismatch() throws Exception {
     ClientResponse response =
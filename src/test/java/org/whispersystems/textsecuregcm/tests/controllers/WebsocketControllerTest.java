@@ -7,6 +7,8 @@ import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.whispersystems.textsecuregcm.auth.AccountAuthenticator;
 import org.whispersystems.textsecuregcm.controllers.WebsocketController;
 import org.whispersystems.textsecuregcm.entities.AcknowledgeWebsocketMessage;
@@ -18,15 +20,19 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.PubSubManager;
+import org.whispersystems.textsecuregcm.storage.PubSubMessage;
 import org.whispersystems.textsecuregcm.storage.StoredMessages;
 import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
 import org.whispersystems.textsecuregcm.websocket.WebsocketControllerFactory;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
 import io.dropwizard.auth.basic.BasicCredentials;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -119,7 +125,7 @@ public class WebsocketControllerTest {
     when(accountAuthenticator.authenticate(eq(new BasicCredentials(VALID_USER, VALID_PASSWORD))))
         .thenReturn(Optional.of(account));
 
-    when(storedMessages.getMessagesForDevice(new WebsocketAddress(account.getNumber(), device.getId())))
+    when(storedMessages.getMessagesForDevice(eq(new WebsocketAddress(account.getNumber(), device.getId())), anyInt()))
         .thenReturn(outgoingMessages);
 
     WebsocketControllerFactory factory    = new WebsocketControllerFactory(accountAuthenticator, accountsManager, pushSender, storedMessages, pubSubManager);
@@ -142,4 +148,56 @@ public class WebsocketControllerTest {
     verify(pushSender, times(1)).sendMessage(eq(sender1), eq(sender1device), any(MessageProtos.OutgoingMessageSignal.class));
   }
 
+  @Test
+  public void testLiveMessageStoredDuringFetch() throws Exception {
+    final StoredMessages       storedMessages       = mock(StoredMessages.class      );
+    final AccountAuthenticator accountAuthenticator = mock(AccountAuthenticator.class);
+    final Account              account              = mock(Account.class             );
+    final Device               device               = mock(Device.class              );
+    final UpgradeRequest       upgradeRequest       = mock(UpgradeRequest.class      );
+    final Session              session              = mock(Session.class             );
+    final RemoteEndpoint       remote               = mock(RemoteEndpoint.class      );
+    final WebsocketAddress     address              = new WebsocketAddress(VALID_USER, 2L);
+    final PendingMessage       stored               = new PendingMessage("sender1", 1111, true, "stored");
+    final PendingMessage       live                 = new PendingMessage("sender1", 2222, true, "live");
+
+    when(device.getId()).thenReturn(2L);
+    when(account.getAuthenticatedDevice()).thenReturn(Optional.of(device));
+    when(account.getNumber()).thenReturn(VALID_USER);
+    when(session.getRemote()).thenReturn(remote);
+    when(session.getUpgradeRequest()).thenReturn(upgradeRequest);
+    when(upgradeRequest.getParameterMap()).thenReturn(new HashMap<String, String[]>() {{
+      put("login", new String[] {VALID_USER});
+      put("password", new String[] {VALID_PASSWORD});
+    }});
+    when(accountAuthenticator.authenticate(eq(new BasicCredentials(VALID_USER, VALID_PASSWORD))))
+        .thenReturn(Optional.of(account));
+
+    when(storedMessages.getMessagesForDevice(eq(address), anyInt()))
+        .thenReturn(Arrays.asList(stored))
+        .thenReturn(Collections.<PendingMessage>emptyList())
+        .thenReturn(Arrays.asList(live))
+        .thenReturn(Collections.<PendingMessage>emptyList());
+
+    final WebsocketController controller = new WebsocketController(accountAuthenticator, accountsManager, pushSender,
+                                                                   pubSubManager, storedMessages, 1, 1);
+
+    // The client acknowledges the stored message while the live one is
+    // still being written, so that fetch finds nothing new.
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        controller.onWebSocketText(mapper.writeValueAsString(new AcknowledgeWebsocketMessage(0)));
+        return null;
+      }
+    }).when(storedMessages).insert(address, live);
+
+    controller.onWebSocketConnect(session);
+    controller.onPubSubMessage(new PubSubMessage(PubSubMessage.TYPE_DELIVER, mapper.writeValueAsString(live)));
+
+    verify(storedMessages).insert(address, live);
+    verify(storedMessages, times(3)).getMessagesForDevice(eq(address), anyInt());
+    verify(remote).sendStringByFuture(contains("stored"));
+    verify(remote).sendStringByFuture(contains("live"));
+  }
 }
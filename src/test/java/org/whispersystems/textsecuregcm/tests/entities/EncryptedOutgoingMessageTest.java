@@ -0,0 +1,101 @@
+package org.whispersystems.textsecuregcm.tests.entities;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.CryptoEncodingException;
+import org.whispersystems.textsecuregcm.entities.EncryptedOutgoingMessage;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
+import org.whispersystems.textsecuregcm.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EncryptedOutgoingMessageTest {
+
+  private static final OutgoingMessageSignal MESSAGE = OutgoingMessageSignal.newBuilder()
+                                                                            .setType(1)
+                                                                            .setSource("+14152222222")
+                                                                            .setSourceDevice(1)
+                                                                            .setTimestamp(1234)
+                                                                            .setMessage(ByteString.copyFromUtf8("hello"))
+                                                                            .build();
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] keyBytes = getSignalingKey();
+    String key      = Base64.encodeBytes(keyBytes);
+
+    EncryptedOutgoingMessage encrypted = new EncryptedOutgoingMessage(MESSAGE, key);
+
+    assertThat(Base64.decode(encrypted.serialize())).isEqualTo(encrypted.getCiphertext());
+    assertThat(encrypted.getCiphertext().length).isEqualTo(EncryptedOutgoingMessage.getEncryptedSize(MESSAGE));
+    assertThat(decrypt(encrypted.getCiphertext(), keyBytes)).isEqualTo(MESSAGE.toByteArray());
+  }
+
+  @Test
+  public void testEncryptIntoBuffer() throws Exception {
+    byte[]     keyBytes = getSignalingKey();
+    String     key      = Base64.encodeBytes(keyBytes);
+    ByteBuffer buffer   = ByteBuffer.allocate(1024);
+
+    buffer.position(7);
+
+    int    length    = EncryptedOutgoingMessage.encrypt(MESSAGE, key, buffer);
+    byte[] encrypted = Arrays.copyOfRange(buffer.array(), 7, 7 + length);
+
+    assertThat(buffer.position()).isEqualTo(7 + length);
+    assertThat(decrypt(encrypted, keyBytes)).isEqualTo(MESSAGE.toByteArray());
+
+    byte[] second = new EncryptedOutgoingMessage(MESSAGE, key).getCiphertext();
+    assertThat(decrypt(second, keyBytes)).isEqualTo(MESSAGE.toByteArray());
+  }
+
+  @Test
+  public void testChangedKeyForCachedDevice() throws Exception {
+    byte[] firstKey  = getSignalingKey();
+    byte[] secondKey = getSignalingKey();
+
+    byte[] first  = new EncryptedOutgoingMessage(MESSAGE, "+14152222222", 1, Base64.encodeBytes(firstKey)).getCiphertext();
+    byte[] second = new EncryptedOutgoingMessage(MESSAGE, "+14152222222", 1, Base64.encodeBytes(secondKey)).getCiphertext();
+
+    assertThat(decrypt(first, firstKey)).isEqualTo(MESSAGE.toByteArray());
+    assertThat(decrypt(second, secondKey)).isEqualTo(MESSAGE.toByteArray());
+  }
+
+  @Test(expected = CryptoEncodingException.class)
+  public void testShortKey() throws Exception {
+    new EncryptedOutgoingMessage(MESSAGE, Base64.encodeBytes(new byte[40]));
+  }
+
+  private byte[] getSignalingKey() {
+    byte[] key = new byte[52];
+    new SecureRandom().nextBytes(key);
+    return key;
+  }
+
+  private byte[] decrypt(byte[] encrypted, byte[] keyBytes) throws Exception {
+    assertThat(encrypted[0]).isEqualTo((byte)0x01);
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(keyBytes, 32, 20, "HmacSHA256"));
+    mac.update(encrypted, 0, encrypted.length - 10);
+
+    byte[] expectedMac = Arrays.copyOf(mac.doFinal(), 10);
+    byte[] actualMac   = Arrays.copyOfRange(encrypted, encrypted.length - 10, encrypted.length);
+
+    assertThat(actualMac).isEqualTo(expectedMac);
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, 0, 32, "AES"),
+                new IvParameterSpec(encrypted, 1, 16));
+
+    return cipher.doFinal(encrypted, 17, encrypted.length - 17 - 10);
+  }
+}
@@ -0,0 +1,68 @@
+package org.whispersystems.textsecuregcm.tests.limits;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.limits.LeakyBucket;
+import org.whispersystems.textsecuregcm.limits.LeakyBucketTranscoder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LeakyBucketTranscoderTest {
+
+  private static final double SLOW_LEAK = 1.0 / (60.0 * 60.0 * 1000.0);
+
+  /**
+   * A full LeakyBucket (size 2, no leak, no space left) as serialized by the
+   * class before its binary format was added, with SerializingTranscoder's
+   * SERIALIZED flag.
+   */
+  private static final int    LEGACY_FLAGS  = 1;
+  private static final String LEGACY_BUCKET =
+      "aced0005737200336f72672e7768697370657273797374656d732e746578747365637572" +
+      "6567636d2e6c696d6974732e4c65616b794275636b657459ab8ed3db31f8a40200044900" +
+      "0a6275636b657453697a654a00146c61737455706461746554696d654d696c6c69734400" +
+      "116c65616b526174655065724d696c6c697349000e737061636552656d61696e696e6778" +
+      "700000000200000145f680b000000000000000000000000000";
+
+  private final LeakyBucketTranscoder transcoder = new LeakyBucketTranscoder(SLOW_LEAK);
+
+  @Test
+  public void testRoundTrip() {
+    LeakyBucket bucket = new LeakyBucket(3, SLOW_LEAK);
+    assertThat(bucket.add(2)).isTrue();
+
+    CachedData  encoded = transcoder.encode(bucket);
+    LeakyBucket decoded = transcoder.decode(encoded);
+
+    assertThat(encoded.getData().length).isEqualTo(17);
+    assertThat(decoded.add(1)).isTrue();
+    assertThat(decoded.add(1)).isFalse();
+  }
+
+  @Test
+  public void testLegacySerialized() throws Exception {
+    byte[]      serialized = Hex.decodeHex(LEGACY_BUCKET.toCharArray());
+    CachedData  legacy     = new CachedData(LEGACY_FLAGS, serialized, serialized.length);
+    LeakyBucket decoded    = transcoder.decode(legacy);
+
+    assertThat(decoded).isNotNull();
+    assertThat(decoded.add(1)).isFalse();
+  }
+
+  @Test
+  public void testLegacyOtherType() {
+    assertThat(transcoder.decode(new SerializingTranscoder().encode("foo"))).isNull();
+  }
+
+  @Test
+  public void testBadLength() {
+    CachedData encoded   = transcoder.encode(new LeakyBucket(2, SLOW_LEAK));
+    byte[]     truncated = new byte[encoded.getData().length - 1];
+
+    System.arraycopy(encoded.getData(), 0, truncated, 0, truncated.length);
+
+    assertThat(transcoder.decode(new CachedData(encoded.getFlags(), truncated, 17))).isNull();
+  }
+}
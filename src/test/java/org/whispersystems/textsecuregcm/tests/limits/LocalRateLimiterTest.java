@@ -0,0 +1,162 @@
+package org.whispersystems.textsecuregcm.tests.limits;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.limits.LocalRateLimiter;
+import org.whispersystems.textsecuregcm.limits.RateLimiter;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LocalRateLimiterTest {
+
+  @Test
+  public void testSlicesAbsorbRequests() throws Exception {
+    SharedLimiter shared = new SharedLimiter(100);
+    RateLimiter   local  = new LocalRateLimiter(shared, 5, 60);
+
+    for (int i=0;i<10;i++) {
+      local.validate("+14152222222");
+    }
+
+    assertThat(shared.requests).isEqualTo(Arrays.asList(5, 5));
+  }
+
+  @Test
+  public void testKeysHaveSeparateSlices() throws Exception {
+    SharedLimiter shared = new SharedLimiter(100);
+    RateLimiter   local  = new LocalRateLimiter(shared, 5, 60);
+
+    local.validate("+14152222222");
+    local.validate("+14153333333");
+
+    assertThat(shared.requests).isEqualTo(Arrays.asList(5, 5));
+  }
+
+  @Test
+  public void testFallsBackToSingleRequestsNearLimit() throws Exception {
+    SharedLimiter shared = new SharedLimiter(3);
+    RateLimiter   local  = new LocalRateLimiter(shared, 5, 60);
+
+    local.validate("+14152222222");
+    local.validate("+14152222222");
+    local.validate("+14152222222");
+
+    try {
+      local.validate("+14152222222");
+      fail();
+    } catch (RateLimitExceededException e) {
+      // good
+    }
+
+    assertThat(shared.remaining).isEqualTo(0);
+  }
+
+  @Test
+  public void testLargeRequestsBypassSlice() throws Exception {
+    SharedLimiter shared = new SharedLimiter(100);
+    RateLimiter   local  = new LocalRateLimiter(shared, 5, 60);
+
+    local.validate("+14152222222", 20);
+
+    assertThat(shared.requests).isEqualTo(Arrays.asList(20));
+  }
+
+  @Test
+  public void testUnspentPermitsReturnedOnExpiry() throws Exception {
+    SharedLimiter shared = new SharedLimiter(100);
+    FakeTicker    ticker = new FakeTicker();
+    RateLimiter   local  = new LocalRateLimiter(shared, 5, 60, ticker);
+
+    local.validate("+14152222222");
+    ticker.advance(61, TimeUnit.SECONDS);
+    local.validate("+14152222222");
+
+    assertThat(shared.requests).isEqualTo(Arrays.asList(5, 5));
+    assertThat(shared.released).isEqualTo(Arrays.asList(4));
+    assertThat(shared.remaining).isEqualTo(100 - 5 - 5 + 4);
+  }
+
+  @Test
+  public void testConcurrentRefillsDoNotLosePermits() throws Exception {
+    final SharedLimiter shared  = new SharedLimiter(1000000);
+    final RateLimiter   local   = new LocalRateLimiter(shared, 5, 60);
+    final List<Thread>  threads = new LinkedList<>();
+    final AtomicLong    failed  = new AtomicLong();
+
+    for (int i=0;i<16;i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j=0;j<1000;j++) {
+            try {
+              local.validate("+14152222222");
+            } catch (RateLimitExceededException e) {
+              failed.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    int unspent = (1000000 - shared.remaining) - 16 * 1000;
+
+    assertThat(failed.get()).isEqualTo(0);
+    assertThat(unspent).isGreaterThanOrEqualTo(0);
+    assertThat(unspent).isLessThan(5);
+  }
+
+  private static class FakeTicker extends Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+      nanos.addAndGet(unit.toNanos(duration));
+    }
+  }
+
+  private static class SharedLimiter extends RateLimiter {
+
+    private final List<Integer> requests = new LinkedList<>();
+    private final List<Integer> released = new LinkedList<>();
+    private int remaining;
+
+    public SharedLimiter(int remaining) {
+      super(null, "test", remaining, 1);
+      this.remaining = remaining;
+    }
+
+    @Override
+    protected synchronized boolean tryAcquire(String key, int amount) {
+      requests.add(amount);
+
+      if (amount > remaining) {
+        return false;
+      }
+
+      remaining -= amount;
+      return true;
+    }
+
+    @Override
+    protected synchronized void release(String key, int amount) {
+      released.add(amount);
+      remaining += amount;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.whispersystems.textsecuregcm.tests.push;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.push.DeliveryQueue;
+import org.whispersystems.textsecuregcm.push.DeliveryQueueFullException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeliveryQueueTest {
+
+  @Test(timeout = 10000)
+  public void testOrderingPerDestination() throws Exception {
+    DeliveryQueue        queue     = new DeliveryQueue(4, 1000);
+    final List<Integer>  delivered = Collections.synchronizedList(new LinkedList<Integer>());
+    final CountDownLatch done      = new CountDownLatch(500);
+
+    for (int i=0;i<500;i++) {
+      final int sequence = i;
+
+      queue.execute("+14152222222.1", new Runnable() {
+        @Override
+        public void run() {
+          delivered.add(sequence);
+          done.countDown();
+        }
+      });
+    }
+
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+
+    for (int i=0;i<500;i++) {
+      assertThat(delivered.get(i)).isEqualTo(i);
+    }
+
+    queue.stop();
+  }
+
+  @Test(timeout = 10000)
+  public void testRejectsWhenFull() throws Exception {
+    DeliveryQueue        queue   = new DeliveryQueue(1, 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    queue.execute("+14152222222.1", new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    started.await();
+    queue.execute("+14152222222.1", new Runnable() {
+      @Override
+      public void run() {}
+    });
+
+    try {
+      queue.execute("+14152222222.1", new Runnable() {
+        @Override
+        public void run() {}
+      });
+      throw new AssertionError("Queue accepted past its capacity");
+    } catch (DeliveryQueueFullException e) {
+      // good
+    }
+
+    release.countDown();
+    queue.stop();
+  }
+
+  @Test(timeout = 10000)
+  public void testBatchQueuedAllOrNothing() throws Exception {
+    DeliveryQueue        queue     = new DeliveryQueue(1, 2);
+    final CountDownLatch release   = new CountDownLatch(1);
+    final AtomicInteger  delivered = new AtomicInteger(0);
+
+    queue.execute("+14152222222.1", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    Map<String, Runnable> batch = new LinkedHashMap<>();
+
+    for (int i=1;i<=3;i++) {
+      batch.put("+14153333333." + i, new Runnable() {
+        @Override
+        public void run() {
+          delivered.incrementAndGet();
+        }
+      });
+    }
+
+    try {
+      queue.execute(batch);
+      throw new AssertionError("Queue accepted a batch past its capacity");
+    } catch (DeliveryQueueFullException e) {
+      // good
+    }
+
+    batch.remove("+14153333333.3");
+    queue.execute(batch);
+
+    release.countDown();
+    queue.stop();
+
+    assertThat(delivered.get()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,94 @@
+package org.whispersystems.textsecuregcm.tests.push;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.push.FanOutExecutor;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class FanOutExecutorTest {
+
+  @Test(timeout = 10000)
+  public void testRunsConcurrently() throws Exception {
+    FanOutExecutor       executor = new FanOutExecutor(4);
+    final CyclicBarrier  barrier  = new CyclicBarrier(4);
+    List<Callable<Void>> tasks    = new LinkedList<>();
+
+    for (int i=0;i<4;i++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          barrier.await(5, TimeUnit.SECONDS);
+          return null;
+        }
+      });
+    }
+
+    executor.invokeAll(tasks);
+  }
+
+  @Test
+  public void testFirstFailureAfterAllTasks() throws Exception {
+    FanOutExecutor       executor  = new FanOutExecutor(2);
+    final AtomicInteger  completed = new AtomicInteger(0);
+    List<Callable<Void>> tasks     = new LinkedList<>();
+
+    for (int i=0;i<5;i++) {
+      final int task = i;
+
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          completed.incrementAndGet();
+
+          if (task == 1) throw new IOException("first");
+          if (task == 3) throw new IllegalStateException("second");
+
+          return null;
+        }
+      });
+    }
+
+    try {
+      executor.invokeAll(tasks);
+      throw new AssertionError("Failure not reported");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+      assertThat(e.getCause().getMessage()).isEqualTo("first");
+    }
+
+    assertThat(completed.get()).isEqualTo(5);
+  }
+
+  @Test
+  public void testSequential() throws Exception {
+    FanOutExecutor       executor = new FanOutExecutor();
+    final Thread         caller   = Thread.currentThread();
+    final AtomicInteger  order    = new AtomicInteger(0);
+    List<Callable<Void>> tasks    = new LinkedList<>();
+
+    for (int i=0;i<3;i++) {
+      final int task = i;
+
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          assertThat(Thread.currentThread()).isSameAs(caller);
+          assertThat(order.getAndIncrement()).isEqualTo(task);
+          return null;
+        }
+      });
+    }
+
+    executor.invokeAll(tasks);
+    assertThat(order.get()).isEqualTo(3);
+  }
+}
@@ -0,0 +1,56 @@
+package org.whispersystems.textsecuregcm.tests.push;
+
+import com.google.common.base.Optional;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.push.PreKeyRefillSender;
+import org.whispersystems.textsecuregcm.push.PushSender;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class PreKeyRefillSenderTest {
+
+  private static final String NUMBER = "+14152222222";
+
+  private final AccountsManager accountsManager = mock(AccountsManager.class);
+  private final PushSender      pushSender      = mock(PushSender.class);
+  private final ExecutorService executor        = mock(ExecutorService.class);
+
+  @Test
+  public void testSignalIsHandedOff() {
+    PreKeyRefillSender sender = new PreKeyRefillSender(accountsManager, pushSender, executor);
+
+    sender.onPreKeysLow(NUMBER, 1);
+
+    verify(executor).execute(any(Runnable.class));
+    verifyZeroInteractions(accountsManager, pushSender);
+  }
+
+  @Test
+  public void testFullQueueDropsSignal() {
+    PreKeyRefillSender sender = new PreKeyRefillSender(accountsManager, pushSender, executor);
+
+    doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+
+    sender.onPreKeysLow(NUMBER, 1);
+
+    verifyZeroInteractions(accountsManager, pushSender);
+  }
+
+  @Test
+  public void testStopDrainsQueuedSignals() throws Exception {
+    PreKeyRefillSender sender = new PreKeyRefillSender(accountsManager, pushSender);
+
+    when(accountsManager.get(NUMBER)).thenReturn(Optional.<Account>absent());
+
+    sender.onPreKeysLow(NUMBER, 1);
+    sender.stop();
+
+    verify(accountsManager).get(NUMBER);
+  }
+}
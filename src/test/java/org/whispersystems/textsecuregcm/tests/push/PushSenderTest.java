@@ -0,0 +1,108 @@
+package org.whispersystems.textsecuregcm.tests.push;
+
+import com.google.common.base.Optional;
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.configuration.ApnConfiguration;
+import org.whispersystems.textsecuregcm.configuration.BBPushConfiguration;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.OutgoingMessageSignal;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.push.APNSender;
+import org.whispersystems.textsecuregcm.push.DeliveryQueue;
+import org.whispersystems.textsecuregcm.push.GCMSender;
+import org.whispersystems.textsecuregcm.push.PushSender;
+import org.whispersystems.textsecuregcm.push.TransientPushFailureException;
+import org.whispersystems.textsecuregcm.push.WebsocketSender;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.util.Base64;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class PushSenderTest {
+
+  private static final OutgoingMessageSignal MESSAGE = OutgoingMessageSignal.newBuilder()
+                                                                            .setType(1)
+                                                                            .setSource("+14151111111")
+                                                                            .setSourceDevice(1)
+                                                                            .setTimestamp(1234)
+                                                                            .setMessage(ByteString.copyFromUtf8("hello"))
+                                                                            .build();
+
+  private final APNSender        apnSender        = mock(APNSender.class       );
+  private final GCMSender        gcmSender        = mock(GCMSender.class       );
+  private final WebsocketSender  websocketSender  = mock(WebsocketSender.class );
+  private final ApnConfiguration apnConfiguration = mock(ApnConfiguration.class);
+  private final Account          account          = mock(Account.class         );
+  private final DeliveryQueue    deliveryQueue    = new DeliveryQueue(1, 10);
+
+  private PushSender pushSender;
+
+  @Before
+  public void setup() {
+    when(apnConfiguration.getEnable()).thenReturn("true");
+    when(account.getNumber()).thenReturn("+14152222222");
+
+    pushSender = new PushSender(apnConfiguration, mock(BBPushConfiguration.class),
+                                gcmSender, apnSender, websocketSender,
+                                Optional.of(deliveryQueue));
+  }
+
+  @After
+  public void teardown() throws Exception {
+    deliveryQueue.stop();
+  }
+
+  @Test
+  public void testQueuedFailureStoresForWebsocket() throws Exception {
+    Device device = new Device(1, "foo", "bar", Base64.encodeBytes(new byte[52]), null, "apn", false, 1, null);
+
+    doThrow(new TransientPushFailureException("APN down"))
+        .when(apnSender).sendMessage(eq(account), eq(device), anyString(), any(PendingMessage.class));
+
+    pushSender.sendMessage(account, device, MESSAGE);
+    deliveryQueue.stop();
+
+    verify(apnSender).sendMessage(eq(account), eq(device), eq("apn"), any(PendingMessage.class));
+    verify(websocketSender).sendMessage(eq(account), eq(device), any(PendingMessage.class));
+  }
+
+  @Test
+  public void testQueuedSuccessDoesNotStore() throws Exception {
+    Device device = new Device(1, "foo", "bar", Base64.encodeBytes(new byte[52]), null, "apn", false, 1, null);
+
+    pushSender.sendMessage(account, device, MESSAGE);
+    deliveryQueue.stop();
+
+    verify(apnSender).sendMessage(eq(account), eq(device), eq("apn"), any(PendingMessage.class));
+    verifyZeroInteractions(websocketSender);
+  }
+
+  @Test
+  public void testSignalIsSilentAndNotStored() throws Exception {
+    Device                device = new Device(1, "foo", "bar", Base64.encodeBytes(new byte[52]), null, "apn", false, 1, null);
+    OutgoingMessageSignal signal = OutgoingMessageSignal.newBuilder()
+                                                        .setType(OutgoingMessageSignal.Type.PREKEY_REFILL_VALUE)
+                                                        .setSource("+14152222222")
+                                                        .setSourceDevice(1)
+                                                        .setTimestamp(1234)
+                                                        .build();
+
+    pushSender.sendSignal(account, device, signal);
+
+    ArgumentCaptor<PendingMessage> captor = ArgumentCaptor.forClass(PendingMessage.class);
+
+    verify(websocketSender).sendLiveMessage(eq(account), eq(device), captor.capture());
+    verify(websocketSender, never()).sendMessage(any(Account.class), any(Device.class), any(PendingMessage.class));
+    verifyZeroInteractions(apnSender);
+
+    assertThat(captor.getValue().isReceipt()).isTrue();
+  }
+}
@@ -0,0 +1,47 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.storage.AccountNearCache;
+import org.whispersystems.textsecuregcm.storage.PubSubManager;
+import org.whispersystems.textsecuregcm.storage.PubSubMessage;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class AccountNearCacheTest {
+
+  private static final String NUMBER = "+14152222222";
+
+  private final AccountNearCache cache = new AccountNearCache(mock(PubSubManager.class), 100, 60);
+
+  @Test
+  public void testPut() {
+    cache.put(NUMBER, "{}", cache.getGeneration(NUMBER));
+
+    assertThat(cache.get(NUMBER).get()).isEqualTo("{}");
+  }
+
+  @Test
+  public void testPutAfterInvalidateDropped() {
+    long generation = cache.getGeneration(NUMBER);
+
+    cache.invalidate(NUMBER);
+    cache.put(NUMBER, "{\"stale\":true}", generation);
+
+    assertThat(cache.get(NUMBER).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testPutAfterRemoteInvalidateDropped() {
+    long generation = cache.getGeneration(NUMBER);
+
+    cache.onPubSubMessage(new PubSubMessage(PubSubMessage.TYPE_INVALIDATE_ACCOUNT, NUMBER));
+    cache.put(NUMBER, "{\"stale\":true}", generation);
+
+    assertThat(cache.get(NUMBER).isPresent()).isFalse();
+
+    cache.put(NUMBER, "{}", cache.getGeneration(NUMBER));
+
+    assertThat(cache.get(NUMBER).get()).isEqualTo("{}");
+  }
+}
@@ -0,0 +1,138 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import com.google.common.base.Optional;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.storage.DirectoryIndex;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DirectoryIndexTest {
+
+  @Test
+  public void testPutGet() {
+    DirectoryIndex index = new DirectoryIndex();
+    byte[]         local = Util.getContactToken("+14152222222");
+    byte[]         peer  = Util.getContactToken("+14153333333");
+
+    index.put(new ClientContact(local, null, true));
+    index.put(new ClientContact(peer, "somepeer", false));
+
+    Optional<ClientContact> localContact = index.get(local);
+    Optional<ClientContact> peerContact  = index.get(peer);
+
+    assertThat(localContact.isPresent()).isTrue();
+    assertThat(localContact.get().getRelay()).isNull();
+    assertThat(localContact.get().isSupportsSms()).isTrue();
+
+    assertThat(peerContact.isPresent()).isTrue();
+    assertThat(peerContact.get().getRelay()).isEqualTo("somepeer");
+    assertThat(peerContact.get().isSupportsSms()).isFalse();
+
+    assertThat(index.get(Util.getContactToken("+14154444444")).isPresent()).isFalse();
+    assertThat(index.get(new byte[3]).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testOverwrite() {
+    DirectoryIndex index = new DirectoryIndex();
+    byte[]         token = Util.getContactToken("+14152222222");
+
+    index.put(new ClientContact(token, null, true));
+    index.put(new ClientContact(token, "somepeer", false));
+
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(index.get(token).get().getRelay()).isEqualTo("somepeer");
+  }
+
+  @Test
+  public void testIntersection() {
+    DirectoryIndex index     = new DirectoryIndex();
+    List<byte[]>   requested = new LinkedList<>();
+
+    for (int i=0;i<1000;i++) {
+      byte[] token = Util.getContactToken("+1415555" + String.format("%04d", i));
+
+      if (i % 3 == 0) index.put(new ClientContact(token, null, false));
+      requested.add(token);
+    }
+
+    List<ClientContact> intersection = index.get(requested);
+
+    assertThat(intersection.size()).isEqualTo(334);
+
+    for (ClientContact contact : intersection) {
+      assertThat(index.get(contact.getToken()).isPresent()).isTrue();
+    }
+  }
+
+  @Test
+  public void testRandomOperations() {
+    DirectoryIndex           index  = new DirectoryIndex();
+    Map<ByteBuffer, Boolean> model  = new HashMap<>();
+    List<byte[]>             tokens = new LinkedList<>();
+    Random                   random = new Random(1234);
+
+    for (int i=0;i<2000;i++) {
+      byte[] token = new byte[DirectoryIndex.TOKEN_LENGTH];
+      random.nextBytes(token);
+
+      // Share the first eight bytes between pairs of tokens to force collisions.
+      if (i % 2 == 1) System.arraycopy(tokens.get(i - 1), 0, token, 0, 8);
+
+      tokens.add(token);
+    }
+
+    for (int i=0;i<50000;i++) {
+      byte[] token = tokens.get(random.nextInt(tokens.size()));
+
+      if (random.nextInt(3) == 0) {
+        index.remove(token);
+        model.remove(ByteBuffer.wrap(token));
+      } else {
+        boolean sms = random.nextBoolean();
+        index.put(new ClientContact(token, null, sms));
+        model.put(ByteBuffer.wrap(token), sms);
+      }
+    }
+
+    assertThat(index.size()).isEqualTo(model.size());
+
+    for (byte[] token : tokens) {
+      Optional<ClientContact> contact = index.get(token);
+      Boolean                 sms     = model.get(ByteBuffer.wrap(token));
+
+      assertThat(contact.isPresent()).isEqualTo(sms != null);
+
+      if (sms != null) {
+        assertThat(contact.get().isSupportsSms()).isEqualTo(sms);
+      }
+    }
+  }
+
+  @Test
+  public void testReplaceAll() {
+    DirectoryIndex index = new DirectoryIndex();
+    byte[]         stale = Util.getContactToken("+14152222222");
+    byte[]         fresh = Util.getContactToken("+14153333333");
+
+    index.put(new ClientContact(stale, null, false));
+    assertThat(index.isLoaded()).isFalse();
+
+    index.replaceAll(Arrays.asList(new ClientContact(fresh, "somepeer", true)));
+
+    assertThat(index.isLoaded()).isTrue();
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(index.get(stale).isPresent()).isFalse();
+    assertThat(index.get(fresh).get().getRelay()).isEqualTo("somepeer");
+  }
+}
@@ -0,0 +1,92 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager.BatchOperationHandle;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class DirectoryManagerTest {
+
+  private static final byte[] TOKEN = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+  private final JedisPool pool     = mock(JedisPool.class);
+  private final Jedis     jedis    = mock(Jedis.class);
+  private final Pipeline  pipeline = mock(Pipeline.class);
+
+  @Before
+  public void setup() {
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+  }
+
+  @Test
+  public void testNoAnnouncementsWithoutIndex() {
+    DirectoryManager directory = new DirectoryManager(pool, false, false);
+
+    directory.add(new ClientContact(TOKEN, null, true));
+    directory.remove(TOKEN);
+
+    BatchOperationHandle handle = directory.startBatchOperation();
+    directory.add(handle, new ClientContact(TOKEN, null, true));
+    directory.stopBatchOperation(handle);
+    directory.announceReload();
+
+    verify(jedis, never()).publish(anyString(), anyString());
+  }
+
+  @Test
+  public void testAnnouncementsWithIndex() {
+    DirectoryManager directory = new DirectoryManager(pool, false, true);
+
+    directory.add(new ClientContact(TOKEN, null, true));
+
+    BatchOperationHandle quiet = directory.startBatchOperation(false);
+    directory.add(quiet, new ClientContact(TOKEN, null, true));
+    directory.stopBatchOperation(quiet);
+
+    verify(jedis, times(1)).publish(eq(DirectoryManager.UPDATE_CHANNEL), anyString());
+
+    BatchOperationHandle handle = directory.startBatchOperation();
+    directory.add(handle, new ClientContact(TOKEN, null, true));
+    directory.stopBatchOperation(handle);
+
+    verify(jedis, times(2)).publish(eq(DirectoryManager.UPDATE_CHANNEL), anyString());
+  }
+
+  @Test
+  public void testGetAllScansPages() {
+    DirectoryManager directory = new DirectoryManager(pool, false, false);
+    byte[]           value     = "{\"s\":true}".getBytes();
+    byte[]           other     = {10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+    when(jedis.eval(any(byte[].class), anyListOf(byte[].class), anyListOf(byte[].class)))
+        .thenReturn(Arrays.<Object>asList("17".getBytes(), Arrays.asList(TOKEN, value)))
+        .thenReturn(Arrays.<Object>asList("0".getBytes(), Arrays.asList(other, value)));
+
+    List<ClientContact> contacts = new LinkedList<>();
+
+    for (ClientContact contact : directory.getAll()) {
+      contacts.add(contact);
+    }
+
+    assertThat(contacts).hasSize(2);
+    assertThat(contacts.get(0).getToken()).isEqualTo(TOKEN);
+    assertThat(contacts.get(1).getToken()).isEqualTo(other);
+
+    verify(jedis, times(2)).eval(any(byte[].class), anyListOf(byte[].class), anyListOf(byte[].class));
+  }
+}
@@ -0,0 +1,218 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import com.google.common.base.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.PreKeyV2;
+import org.whispersystems.textsecuregcm.storage.KeyRecord;
+import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
+import org.whispersystems.textsecuregcm.storage.PreKeyRefillListener;
+
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class KeysManagerTest {
+
+  private static final String NUMBER = "+14152222222";
+  private static final String CLAIMS = "prekey_claims::" + NUMBER;
+  private static final String COUNT1 = "prekey_count::" + NUMBER + "::1";
+  private static final String COUNT2 = "prekey_count::" + NUMBER + "::2";
+  private static final String COUNT3 = "prekey_count::" + NUMBER + "::3";
+  private static final String TTL    = String.valueOf(24 * 60 * 60);
+
+  private final Keys      keys  = mock(Keys.class);
+  private final JedisPool pool  = mock(JedisPool.class);
+  private final Jedis     jedis = mock(Jedis.class);
+
+  private KeysManager keysManager;
+
+  @Before
+  public void setup() {
+    when(pool.getResource()).thenReturn(jedis);
+    keysManager = new KeysManager(keys, pool);
+  }
+
+  @Test
+  public void testCountFromRedis() {
+    when(jedis.get(COUNT1)).thenReturn("7");
+
+    assertThat(keysManager.getCount(NUMBER, 1)).isEqualTo(7);
+
+    verify(keys, never()).getCount(anyString(), anyLong());
+  }
+
+  @Test
+  public void testMissingCountReconciles() {
+    when(keys.getCount(NUMBER, 1)).thenReturn(5);
+    when(jedis.hget(CLAIMS, "seq")).thenReturn("3");
+
+    assertThat(keysManager.getCount(NUMBER, 1)).isEqualTo(5);
+
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(COUNT1, CLAIMS)), eq(Arrays.asList("5", TTL, "3")));
+    verify(jedis, never()).setex(anyString(), anyInt(), anyString());
+  }
+
+  @Test
+  public void testStoreClearsCount() {
+    List<PreKeyV2> preKeys = Arrays.asList(new PreKeyV2(1, "a"), new PreKeyV2(1, "b"));
+
+    keysManager.store(NUMBER, 1, preKeys, new PreKeyV2(0xFFFFFF, "c"));
+
+    verify(keys).store(NUMBER, 1, preKeys, new PreKeyV2(0xFFFFFF, "c"));
+    verify(jedis).del(COUNT1);
+    verify(jedis, never()).setex(anyString(), anyInt(), anyString());
+  }
+
+  @Test
+  public void testClaimsDecrementOneTimeKeys() {
+    List<KeyRecord> claimed = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false),
+                                            new KeyRecord(2, NUMBER, 2, 20, "b", true),
+                                            new KeyRecord(3, NUMBER, 3, 30, "c", false));
+
+    when(keys.get(NUMBER)).thenReturn(Optional.of(claimed));
+
+    assertThat(keysManager.get(NUMBER).get()).isEqualTo(claimed);
+
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(CLAIMS)), eq(Arrays.asList("60")));
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1, COUNT3)), anyListOf(String.class));
+  }
+
+  @Test
+  public void testFailedClaimFinishes() {
+    when(keys.get(NUMBER, 1)).thenThrow(new RuntimeException("database down"));
+
+    try {
+      keysManager.get(NUMBER, 1);
+      fail();
+    } catch (RuntimeException e) {
+      // good
+    }
+
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(CLAIMS)), eq(Arrays.asList("60")));
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(CLAIMS)), eq(Arrays.<String>asList()));
+  }
+
+  @Test
+  public void testRefillSignalOnCrossingThreshold() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+    List<KeyRecord>      claimed  = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false),
+                                                  new KeyRecord(2, NUMBER, 2, 20, "b", false),
+                                                  new KeyRecord(3, NUMBER, 3, 30, "c", false));
+
+    when(keys.get(NUMBER)).thenReturn(Optional.of(claimed));
+    when(keys.getCount(NUMBER, 3)).thenReturn(50);
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1, COUNT2, COUNT3)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(10L, 9L, -1L));
+
+    manager.get(NUMBER);
+
+    verify(listener).onPreKeysLow(NUMBER, 1);
+    verifyNoMoreInteractions(listener);
+  }
+
+  @Test
+  public void testClaimOnMissingCounter() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+    List<KeyRecord>      claimed  = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false));
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(claimed));
+    when(keys.getCount(NUMBER, 1)).thenReturn(50);
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(-1L));
+
+    assertThat(manager.get(NUMBER, 1).get()).isEqualTo(claimed);
+
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(COUNT1, CLAIMS)), eq(Arrays.asList("50", TTL, "0")));
+    verify(jedis, never()).setex(anyString(), anyInt(), anyString());
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void testRefillSignalOnLowRecount() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+    List<KeyRecord>      claimed  = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false));
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(claimed));
+    when(keys.getCount(NUMBER, 1)).thenReturn(4);
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(-1L));
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(COUNT1, CLAIMS)), anyListOf(String.class)))
+        .thenReturn(1L);
+
+    manager.get(NUMBER, 1);
+
+    verify(listener).onPreKeysLow(NUMBER, 1);
+  }
+
+  @Test
+  public void testNoRefillSignalWhenRecountNotPrimed() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+    List<KeyRecord>      claimed  = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false));
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(claimed));
+    when(keys.getCount(NUMBER, 1)).thenReturn(4);
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(-1L));
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(COUNT1, CLAIMS)), anyListOf(String.class)))
+        .thenReturn(0L);
+
+    manager.get(NUMBER, 1);
+
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void testRefillListenerFailureDoesNotFailClaim() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+    List<KeyRecord>      claimed  = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false));
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(claimed));
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(10L));
+    doThrow(new RuntimeException("push down")).when(listener).onPreKeysLow(NUMBER, 1);
+
+    assertThat(manager.get(NUMBER, 1).get()).isEqualTo(claimed);
+  }
+
+  @Test
+  public void testNoRefillSignalAboveThreshold() {
+    PreKeyRefillListener listener = mock(PreKeyRefillListener.class);
+    KeysManager          manager  = new KeysManager(keys, pool, Optional.of(listener), 10);
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", false))));
+    when(jedis.evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class)))
+        .thenReturn(Arrays.<Object>asList(11L));
+
+    manager.get(NUMBER, 1);
+
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void testLastResortClaimKeepsCount() {
+    List<KeyRecord> claimed = Arrays.asList(new KeyRecord(1, NUMBER, 1, 10, "a", true));
+
+    when(keys.get(NUMBER, 1)).thenReturn(Optional.of(claimed));
+
+    assertThat(keysManager.get(NUMBER, 1).get()).isEqualTo(claimed);
+
+    verify(jedis).evalsha(anyString(), eq(Arrays.asList(CLAIMS)), eq(Arrays.<String>asList()));
+    verify(jedis, never()).evalsha(anyString(), eq(Arrays.asList(CLAIMS, COUNT1)), anyListOf(String.class));
+  }
+}
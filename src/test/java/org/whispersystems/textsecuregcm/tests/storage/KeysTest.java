@@ -0,0 +1,270 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.whispersystems.textsecuregcm.entities.PreKeyV2;
+import org.whispersystems.textsecuregcm.storage.KeyRecord;
+import org.whispersystems.textsecuregcm.storage.Keys;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Runs {@link Keys} against a real PostgreSQL, since the claims and the
+ * upload diff lean on SKIP LOCKED, LATERAL and advisory locks.
+ */
+public class KeysTest {
+
+  private static final String NUMBER  = "+14152222222";
+  private static final int    THREADS = 16;
+
+  private static EmbeddedPostgres postgres;
+  private static DBI              dbi;
+  private static Keys             keys;
+
+  @BeforeClass
+  public static void startPostgres() throws Exception {
+    postgres = EmbeddedPostgres.start();
+    dbi      = new DBI(postgres.getPostgresDatabase());
+    keys     = dbi.onDemand(Keys.class);
+
+    try (Connection connection = postgres.getPostgresDatabase().getConnection()) {
+      new Liquibase("migrations.xml", new ClassLoaderResourceAccessor(), new JdbcConnection(connection)).update("");
+    }
+  }
+
+  @AfterClass
+  public static void stopPostgres() throws Exception {
+    postgres.close();
+  }
+
+  @Before
+  public void setup() {
+    Handle handle = dbi.open();
+
+    try {
+      handle.execute("DELETE FROM keys");
+    } finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testStoreAsDiff() {
+    keys.store(NUMBER, 1, getPreKeys(1, 3), new PreKeyV2(0xFFFFFF, "last"));
+
+    Map<Long, Long> before = getRowIds(NUMBER, 1);
+
+    keys.store(NUMBER, 1, getPreKeys(2, 4), new PreKeyV2(0xFFFFFF, "last"));
+
+    Map<Long, Long> after = getRowIds(NUMBER, 1);
+
+    assertThat(after.keySet()).containsOnly(2L, 3L, 4L, (long)0xFFFFFF);
+    assertThat(after.get(2L)).isEqualTo(before.get(2L));
+    assertThat(after.get(3L)).isEqualTo(before.get(3L));
+    assertThat(after.get((long)0xFFFFFF)).isEqualTo(before.get((long)0xFFFFFF));
+    assertThat(keys.getCount(NUMBER, 1)).isEqualTo(4);
+  }
+
+  @Test
+  public void testStoreReplacesChangedKey() {
+    keys.store(NUMBER, 1, getPreKeys(1, 2), new PreKeyV2(0xFFFFFF, "last"));
+    keys.store(NUMBER, 1, getPreKeys(1, 2), new PreKeyV2(0xFFFFFF, "other"));
+
+    List<KeyRecord> claimed = new LinkedList<>();
+
+    for (int i=0;i<3;i++) {
+      claimed.addAll(keys.get(NUMBER, 1).get());
+    }
+
+    assertThat(claimed.get(2).isLastResort()).isTrue();
+    assertThat(claimed.get(2).getPublicKey()).isEqualTo("other");
+    assertThat(keys.getCount(NUMBER, 1)).isEqualTo(1);
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentStoresDoNotDuplicate() throws Exception {
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) {
+        keys.store(NUMBER, 1, getPreKeys(1, 50), new PreKeyV2(0xFFFFFF, "last"));
+      }
+    });
+
+    assertThat(keys.getCount(NUMBER, 1)).isEqualTo(51);
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentClaimsAreDistinct() throws Exception {
+    final Set<Long> claimed    = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    final Set<Long> duplicates = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    keys.store(NUMBER, 1, getPreKeys(1, 200), new PreKeyV2(0xFFFFFF, "last"));
+
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) {
+        for (;;) {
+          KeyRecord record = keys.get(NUMBER, 1).get().get(0);
+
+          if (record.isLastResort()) {
+            return;
+          }
+
+          if (!claimed.add(record.getKeyId())) {
+            duplicates.add(record.getKeyId());
+          }
+        }
+      }
+    });
+
+    assertThat(duplicates).isEmpty();
+    assertThat(claimed).hasSize(200);
+    assertThat(keys.getCount(NUMBER, 1)).isEqualTo(1);
+  }
+
+  @Test
+  public void testClaimAllDevices() {
+    keys.store(NUMBER, 1, getPreKeys(1, 2), new PreKeyV2(0xFFFFFF, "last-1"));
+    keys.store(NUMBER, 2, getPreKeys(5, 5), new PreKeyV2(0xFFFFFF, "last-2"));
+    keys.store(NUMBER, 3, new LinkedList<PreKeyV2>(), new PreKeyV2(0xFFFFFF, "last-3"));
+
+    List<KeyRecord> first = keys.get(NUMBER).get();
+
+    assertThat(first).hasSize(3);
+    assertThat(first.get(0).getDeviceId()).isEqualTo(1);
+    assertThat(first.get(0).getKeyId()).isEqualTo(1);
+    assertThat(first.get(1).getDeviceId()).isEqualTo(2);
+    assertThat(first.get(1).getKeyId()).isEqualTo(5);
+    assertThat(first.get(2).getDeviceId()).isEqualTo(3);
+    assertThat(first.get(2).isLastResort()).isTrue();
+
+    List<KeyRecord> second = keys.get(NUMBER).get();
+
+    assertThat(second.get(0).getKeyId()).isEqualTo(2);
+    assertThat(second.get(1).isLastResort()).isTrue();
+    assertThat(second.get(1).getPublicKey()).isEqualTo("last-2");
+    assertThat(second.get(2).isLastResort()).isTrue();
+
+    assertThat(keys.getCount(NUMBER, 1)).isEqualTo(1);
+    assertThat(keys.getCount(NUMBER, 2)).isEqualTo(1);
+    assertThat(keys.getCount(NUMBER, 3)).isEqualTo(1);
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentClaimAllDevices() throws Exception {
+    final Set<String> claimed    = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final Set<String> duplicates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    keys.store(NUMBER, 1, getPreKeys(1, 100), new PreKeyV2(0xFFFFFF, "last-1"));
+    keys.store(NUMBER, 2, getPreKeys(1, 100), new PreKeyV2(0xFFFFFF, "last-2"));
+
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) {
+        for (;;) {
+          boolean exhausted = true;
+
+          for (KeyRecord record : keys.get(NUMBER).get()) {
+            if (record.isLastResort()) continue;
+
+            exhausted = false;
+
+            if (!claimed.add(record.getDeviceId() + "." + record.getKeyId())) {
+              duplicates.add(record.getDeviceId() + "." + record.getKeyId());
+            }
+          }
+
+          if (exhausted) return;
+        }
+      }
+    });
+
+    assertThat(duplicates).isEmpty();
+    assertThat(claimed).hasSize(200);
+  }
+
+  @Test
+  public void testNoKeys() {
+    assertThat(keys.get(NUMBER, 1).isPresent()).isFalse();
+    assertThat(keys.get(NUMBER).isPresent()).isFalse();
+  }
+
+  private List<PreKeyV2> getPreKeys(int first, int last) {
+    List<PreKeyV2> preKeys = new LinkedList<>();
+
+    for (int i=first;i<=last;i++) {
+      preKeys.add(new PreKeyV2(i, "key-" + i));
+    }
+
+    return preKeys;
+  }
+
+  private Map<Long, Long> getRowIds(String number, long deviceId) {
+    Handle          handle = dbi.open();
+    Map<Long, Long> ids    = new HashMap<>();
+
+    try {
+      for (Map<String, Object> row : handle.select("SELECT id, key_id FROM keys WHERE number = ? AND device_id = ?",
+                                                   number, deviceId))
+      {
+        ids.put(((Number)row.get("key_id")).longValue(), ((Number)row.get("id")).longValue());
+      }
+    } finally {
+      handle.close();
+    }
+
+    return ids;
+  }
+
+  private void runConcurrently(final ThreadBody body) throws InterruptedException {
+    final CountDownLatch  start    = new CountDownLatch(1);
+    final List<Throwable> failures = new LinkedList<>();
+    final List<Thread>    threads  = new LinkedList<>();
+
+    for (int i=0;i<THREADS;i++) {
+      final int thread = i;
+
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            body.run(thread);
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    start.countDown();
+    for (Thread thread : threads) thread.join();
+
+    assertThat(failures).isEmpty();
+  }
+
+  private interface ThreadBody {
+    public void run(int thread) throws Exception;
+  }
+}
@@ -0,0 +1,71 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.storage.LuaScript;
+
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class LuaScriptTest {
+
+  private static final String       SCRIPT = "return 1";
+  private static final String       SHA    = "e0e1f9fabfc9d4800c877a703b823ac0578ff8db";
+  private static final List<String> KEYS   = Arrays.asList("key");
+  private static final List<String> ARGS   = Arrays.asList("arg");
+
+  @Test
+  public void testEvalSha() {
+    JedisPool pool  = mock(JedisPool.class);
+    Jedis     jedis = mock(Jedis.class);
+
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.evalsha(SHA, KEYS, ARGS)).thenReturn(1L);
+
+    assertThat(new LuaScript(pool, SCRIPT).execute(KEYS, ARGS)).isEqualTo(1L);
+
+    verify(jedis, never()).eval(anyString(), anyListOf(String.class), anyListOf(String.class));
+    verify(pool).returnResource(jedis);
+  }
+
+  @Test
+  public void testNoScriptFallback() {
+    JedisPool pool  = mock(JedisPool.class);
+    Jedis     jedis = mock(Jedis.class);
+
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.evalsha(SHA, KEYS, ARGS)).thenThrow(new JedisDataException("NOSCRIPT No matching script."));
+    when(jedis.eval(SCRIPT, KEYS, ARGS)).thenReturn(1L);
+
+    assertThat(new LuaScript(pool, SCRIPT).execute(KEYS, ARGS)).isEqualTo(1L);
+
+    verify(pool).returnResource(jedis);
+  }
+
+  @Test
+  public void testScriptError() {
+    JedisPool pool  = mock(JedisPool.class);
+    Jedis     jedis = mock(Jedis.class);
+
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.evalsha(SHA, KEYS, ARGS)).thenThrow(new JedisDataException("ERR Error running script"));
+
+    try {
+      new LuaScript(pool, SCRIPT).execute(KEYS, ARGS);
+      fail();
+    } catch (JedisDataException e) {
+      // good
+    }
+
+    verify(jedis, never()).eval(anyString(), anyListOf(String.class), anyListOf(String.class));
+    verify(pool).returnResource(jedis);
+  }
+}
@@ -0,0 +1,518 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.storage.PubSubListener;
+import org.whispersystems.textsecuregcm.storage.PubSubManager;
+import org.whispersystems.textsecuregcm.storage.PubSubMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PubSubManagerTest {
+
+  private static final int THREADS    = 16;
+  private static final int ITERATIONS = 250;
+
+  private final List<PubSubManager> managers = new LinkedList<>();
+
+  private FakeRedis     redis;
+  private PubSubManager pubSubManager;
+
+  @Before
+  public void setup() throws IOException {
+    redis         = new FakeRedis();
+    pubSubManager = newManager(1, 0);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    for (PubSubManager manager : managers) {
+      manager.stop();
+    }
+
+    redis.stop();
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentPublish() throws Exception {
+    final CountingListener listener  = new CountingListener(THREADS * ITERATIONS);
+    final AtomicInteger    delivered = new AtomicInteger(0);
+
+    pubSubManager.subscribe("shared", listener);
+
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) {
+        for (int i=0;i<ITERATIONS;i++) {
+          if (pubSubManager.publish("shared", new PubSubMessage(PubSubMessage.TYPE_DELIVER, thread + ":" + i))) {
+            delivered.incrementAndGet();
+          }
+        }
+      }
+    });
+
+    assertThat(listener.await()).isTrue();
+    assertThat(delivered.get()).isEqualTo(THREADS * ITERATIONS);
+    assertThat(listener.getReceived().size()).isEqualTo(THREADS * ITERATIONS);
+  }
+
+  @Test(timeout = 60000)
+  public void testSubscribePublishInterleavings() throws Exception {
+    final Set<String> errors = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) throws InterruptedException {
+        String channel = "channel-" + thread;
+
+        for (int i=0;i<ITERATIONS;i++) {
+          CountingListener listener = new CountingListener(1);
+          String           contents = thread + ":" + i;
+
+          pubSubManager.subscribe(channel, listener);
+
+          if (!pubSubManager.publish(channel, new PubSubMessage(PubSubMessage.TYPE_DELIVER, contents))) {
+            errors.add(contents + " not published");
+          }
+
+          if (!listener.await() || !listener.getReceived().equals(Arrays.asList(contents))) {
+            errors.add(contents + " received " + listener.getReceived());
+          }
+
+          pubSubManager.unsubscribe(channel, listener);
+
+          if (pubSubManager.publish(channel, new PubSubMessage(PubSubMessage.TYPE_DELIVER, contents))) {
+            errors.add(contents + " published after unsubscribe");
+          }
+        }
+      }
+    });
+
+    assertThat(errors).isEmpty();
+  }
+
+  @Test(timeout = 60000)
+  public void testStaleUnsubscribe() throws Exception {
+    CountingListener first  = new CountingListener(1);
+    CountingListener second = new CountingListener(1);
+
+    pubSubManager.subscribe("channel", first);
+    pubSubManager.subscribe("channel", second);
+    pubSubManager.unsubscribe("channel", first);
+
+    assertThat(pubSubManager.publish("channel", new PubSubMessage(PubSubMessage.TYPE_DELIVER, "foo"))).isTrue();
+    assertThat(second.await()).isTrue();
+    assertThat(first.getReceived()).isEmpty();
+  }
+
+  @Test(timeout = 60000)
+  public void testShardedOrdering() throws Exception {
+    final PubSubManager sharded = newManager(4, 4);
+    final Set<String>   errors  = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    runConcurrently(new ThreadBody() {
+      @Override
+      public void run(int thread) throws InterruptedException {
+        String           channel  = "channel-" + thread;
+        CountingListener listener = new CountingListener(ITERATIONS);
+        List<String>     sent     = new LinkedList<>();
+
+        sharded.subscribe(channel, listener);
+
+        for (int i=0;i<ITERATIONS;i++) {
+          String contents = thread + ":" + i;
+
+          if (!sharded.publish(channel, new PubSubMessage(PubSubMessage.TYPE_DELIVER, contents))) {
+            errors.add(contents + " not published");
+          }
+
+          sent.add(contents);
+        }
+
+        if (!listener.await() || !listener.getReceived().equals(sent)) {
+          errors.add(channel + " received " + listener.getReceived());
+        }
+
+        sharded.unsubscribe(channel, listener);
+      }
+    });
+
+    assertThat(errors).isEmpty();
+  }
+
+  @Test(timeout = 60000)
+  public void testSlowListenerDoesNotStallOtherDispatchers() throws Exception {
+    PubSubManager        sharded = newManager(2, 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    String               slow    = "slow";
+    String               fast    = slow;
+
+    for (int i=0;Math.abs(fast.hashCode() % 2) == Math.abs(slow.hashCode() % 2);i++) {
+      fast = "fast-" + i;
+    }
+
+    CountingListener fastListener = new CountingListener(1);
+
+    sharded.subscribe(slow, new PubSubListener() {
+      @Override
+      public void onPubSubMessage(PubSubMessage message) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    sharded.subscribe(fast, fastListener);
+
+    assertThat(sharded.publish(slow, new PubSubMessage(PubSubMessage.TYPE_DELIVER, "blocked"))).isTrue();
+    assertThat(sharded.publish(fast, new PubSubMessage(PubSubMessage.TYPE_DELIVER, "through"))).isTrue();
+    assertThat(fastListener.await()).isTrue();
+    assertThat(fastListener.getReceived()).isEqualTo(Arrays.asList("through"));
+
+    release.countDown();
+  }
+
+  @Test(timeout = 60000)
+  public void testChannelsSpreadAcrossShards() throws Exception {
+    PubSubManager sharded  = newManager(4, 0);
+    List<String>  channels = new LinkedList<>();
+
+    for (int i=0;i<32;i++) {
+      CountingListener listener = new CountingListener(1);
+
+      channels.add("channel-" + i);
+      sharded.subscribe("channel-" + i, listener);
+
+      assertThat(sharded.publish("channel-" + i, new PubSubMessage(PubSubMessage.TYPE_DELIVER, "foo"))).isTrue();
+      assertThat(listener.await()).isTrue();
+    }
+
+    Set<Integer> shards = new HashSet<>();
+
+    for (Set<String> subscriptions : redis.getSubscriptions()) {
+      subscriptions.retainAll(channels);
+
+      if (subscriptions.isEmpty()) continue;
+
+      Set<Integer> indexes = new HashSet<>();
+
+      for (String channel : subscriptions) {
+        indexes.add(Math.abs(channel.hashCode() % 4));
+      }
+
+      assertThat(indexes).hasSize(1);
+      shards.addAll(indexes);
+    }
+
+    assertThat(shards).hasSize(4);
+  }
+
+  @Test(timeout = 60000)
+  public void testStopReleasesSubscribers() throws Exception {
+    PubSubManager    manager  = new PubSubManager(redis.getPool(), 2, 2);
+    CountingListener listener = new CountingListener(1);
+
+    manager.subscribe("channel", listener);
+    assertThat(manager.publish("channel", new PubSubMessage(PubSubMessage.TYPE_DELIVER, "foo"))).isTrue();
+    assertThat(listener.await()).isTrue();
+
+    manager.stop();
+
+    for (Set<String> subscriptions : redis.getSubscriptions()) {
+      assertThat(subscriptions).doesNotContain("channel");
+    }
+
+    assertThat(manager.publish("channel", new PubSubMessage(PubSubMessage.TYPE_DELIVER, "bar"))).isFalse();
+
+    manager.unsubscribe("channel", listener);
+  }
+
+  private PubSubManager newManager(int shards, int dispatchThreads) {
+    PubSubManager manager = new PubSubManager(redis.getPool(), shards, dispatchThreads);
+    managers.add(manager);
+    return manager;
+  }
+
+  private void runConcurrently(final ThreadBody body) throws InterruptedException {
+    final CountDownLatch   start    = new CountDownLatch(1);
+    final List<Throwable>  failures = new LinkedList<>();
+    final List<Thread>     threads  = new LinkedList<>();
+
+    for (int i=0;i<THREADS;i++) {
+      final int thread = i;
+
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            body.run(thread);
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    start.countDown();
+    for (Thread thread : threads) thread.join();
+
+    assertThat(failures).isEmpty();
+  }
+
+  private interface ThreadBody {
+    public void run(int thread) throws Exception;
+  }
+
+  private static class CountingListener implements PubSubListener {
+
+    private final List<String>   received = new LinkedList<>();
+    private final CountDownLatch latch;
+
+    public CountingListener(int expected) {
+      this.latch = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void onPubSubMessage(PubSubMessage message) {
+      synchronized (received) {
+        received.add(message.getContents());
+      }
+
+      latch.countDown();
+    }
+
+    public boolean await() throws InterruptedException {
+      return latch.await(10, TimeUnit.SECONDS);
+    }
+
+    public List<String> getReceived() {
+      synchronized (received) {
+        return new LinkedList<>(received);
+      }
+    }
+  }
+
+  /**
+   * Plays the part of the redis server on a local socket, speaking just
+   * enough of the protocol for subscribe, unsubscribe and publish.  Each
+   * connection is served by its own thread, and state changes and message
+   * fan-out happen under one lock, so replies reach every subscriber in the
+   * order the commands were applied.
+   */
+  private static class FakeRedis {
+
+    private final List<Connection> connections = new LinkedList<>();
+    private final ServerSocket     serverSocket;
+    private final JedisPool        pool;
+
+    public FakeRedis() throws IOException {
+      JedisPoolConfig poolConfig = new JedisPoolConfig();
+      poolConfig.setMaxActive(64);
+
+      this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      this.pool         = new JedisPool(poolConfig, "127.0.0.1", serverSocket.getLocalPort());
+
+      Thread acceptor = new Thread("FakeRedisAcceptor") {
+        @Override
+        public void run() {
+          try {
+            for (;;) {
+              Connection connection = new Connection(serverSocket.accept());
+
+              synchronized (FakeRedis.this) {
+                connections.add(connection);
+              }
+
+              connection.start();
+            }
+          } catch (IOException e) {
+            // Closed.
+          }
+        }
+      };
+
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    public JedisPool getPool() {
+      return pool;
+    }
+
+    /**
+     * @return The channels each subscriber connection holds, one set per
+     *         connection that is subscribed to anything.
+     */
+    public synchronized List<Set<String>> getSubscriptions() {
+      List<Set<String>> subscriptions = new LinkedList<>();
+
+      for (Connection connection : connections) {
+        if (!connection.channels.isEmpty()) {
+          subscriptions.add(new HashSet<>(connection.channels));
+        }
+      }
+
+      return subscriptions;
+    }
+
+    public void stop() throws IOException {
+      pool.destroy();
+      serverSocket.close();
+
+      synchronized (this) {
+        for (Connection connection : connections) {
+          connection.socket.close();
+        }
+      }
+    }
+
+    private class Connection extends Thread {
+
+      private final Set<String>  channels = new HashSet<>();
+      private final Socket       socket;
+      private final InputStream  input;
+      private final OutputStream output;
+
+      public Connection(Socket socket) throws IOException {
+        super("FakeRedisConnection");
+        setDaemon(true);
+
+        this.socket = socket;
+        this.input  = new BufferedInputStream(socket.getInputStream());
+        this.output = new BufferedOutputStream(socket.getOutputStream());
+      }
+
+      @Override
+      public void run() {
+        try {
+          for (;;) {
+            List<String> command = readCommand();
+            String       name    = command.get(0).toUpperCase();
+            List<String> args    = command.subList(1, command.size());
+
+            synchronized (FakeRedis.this) {
+              if      (name.equals("SUBSCRIBE"))   onSubscribe(args);
+              else if (name.equals("UNSUBSCRIBE")) onUnsubscribe(args);
+              else if (name.equals("PUBLISH"))     onPublish(args.get(0), args.get(1));
+              else if (name.equals("PING"))        write("+PONG\r\n");
+              else if (name.equals("QUIT"))        write("+OK\r\n");
+              else                                 write("-ERR unknown command\r\n");
+            }
+          }
+        } catch (IOException e) {
+          synchronized (FakeRedis.this) {
+            channels.clear();
+            connections.remove(this);
+          }
+        }
+      }
+
+      private void onSubscribe(List<String> args) throws IOException {
+        for (String channel : args) {
+          channels.add(channel);
+          write(reply("subscribe", channel, integer(channels.size())));
+        }
+      }
+
+      private void onUnsubscribe(List<String> args) throws IOException {
+        List<String> removed = args.isEmpty() ? new LinkedList<>(channels) : args;
+
+        for (String channel : removed) {
+          channels.remove(channel);
+          write(reply("unsubscribe", channel, integer(channels.size())));
+        }
+      }
+
+      private void onPublish(String channel, String message) throws IOException {
+        int receivers = 0;
+
+        for (Connection connection : connections) {
+          if (connection.channels.contains(channel)) {
+            connection.write(reply("message", channel, bulk(message)));
+            receivers++;
+          }
+        }
+
+        write(integer(receivers));
+      }
+
+      private void write(String reply) throws IOException {
+        output.write(reply.getBytes("UTF-8"));
+        output.flush();
+      }
+
+      private List<String> readCommand() throws IOException {
+        int          count   = Integer.parseInt(readLine().substring(1));
+        List<String> command = new LinkedList<>();
+
+        for (int i=0;i<count;i++) {
+          byte[] argument = new byte[Integer.parseInt(readLine().substring(1))];
+
+          for (int read=0;read<argument.length;) {
+            int result = input.read(argument, read, argument.length - read);
+            if (result == -1) throw new EOFException();
+            read += result;
+          }
+
+          readLine();
+          command.add(new String(argument, "UTF-8"));
+        }
+
+        return command;
+      }
+
+      private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int           c;
+
+        while ((c = input.read()) != '\n') {
+          if (c == -1) throw new EOFException();
+          if (c != '\r') line.append((char)c);
+        }
+
+        return line.toString();
+      }
+    }
+
+    private static String reply(String type, String channel, String payload) throws IOException {
+      return "*3\r\n" + bulk(type) + bulk(channel) + payload;
+    }
+
+    private static String integer(int value) {
+      return ":" + value + "\r\n";
+    }
+
+    private static String bulk(String value) throws IOException {
+      return "$" + value.getBytes("UTF-8").length + "\r\n" + value + "\r\n";
+    }
+  }
+}
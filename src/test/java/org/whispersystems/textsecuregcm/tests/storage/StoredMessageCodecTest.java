@@ -0,0 +1,41 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.storage.StoredMessageCodec;
+import org.whispersystems.textsecuregcm.util.Base64;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StoredMessageCodecTest {
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    String         ciphertext = Base64.encodeBytes(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05, (byte)0xff});
+    PendingMessage message    = new PendingMessage("+14152222222", 1234L, true, ciphertext);
+    byte[]         encoded    = StoredMessageCodec.encode(message);
+
+    assertThat(encoded[0]).isEqualTo(StoredMessageCodec.VERSION_BINARY);
+    assertThat(StoredMessageCodec.decode(encoded)).isEqualTo(message);
+    assertThat(encoded.length).isLessThan(SystemMapper.getMapper().writeValueAsBytes(message).length);
+  }
+
+  @Test
+  public void testNonBase64FallsBackToJson() throws Exception {
+    PendingMessage message = new PendingMessage("sender1", 1111, false, "first");
+    byte[]         encoded = StoredMessageCodec.encode(message);
+
+    assertThat(encoded[0]).isEqualTo((byte)'{');
+    assertThat(StoredMessageCodec.decode(encoded)).isEqualTo(message);
+  }
+
+  @Test
+  public void testLegacyJsonEntry() throws Exception {
+    PendingMessage message = new PendingMessage("+14152222222", 5678L, false, "AQIDBA==");
+    byte[]         legacy  = SystemMapper.getMapper().writeValueAsString(message).getBytes();
+
+    assertThat(StoredMessageCodec.decode(legacy)).isEqualTo(message);
+  }
+
+}
@@ -0,0 +1,76 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.whispersystems.textsecuregcm.entities.PendingMessage;
+import org.whispersystems.textsecuregcm.storage.StoredMessages;
+import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class StoredMessagesTest {
+
+  private static final WebsocketAddress ADDRESS = new WebsocketAddress("+14152222222", 1);
+  private static final PendingMessage   MESSAGE = new PendingMessage("+14151111111", 1234, false, "hello");
+
+  private final JedisPool      pool     = mock(JedisPool.class);
+  private final Jedis          jedis    = mock(Jedis.class);
+  private final Pipeline       pipeline = mock(Pipeline.class);
+  @SuppressWarnings("unchecked")
+  private final Response<Long> response = mock(Response.class);
+
+  @Before
+  public void setup() {
+    when(pool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(response.get()).thenReturn(1L);
+    when(pipeline.lpush(any(byte[].class), Matchers.<byte[]>anyVararg())).thenReturn(response);
+  }
+
+  @Test(timeout = 10000)
+  public void testStopFlushesQueuedInserts() throws Exception {
+    final StoredMessages             storedMessages = new StoredMessages(pool, 60000, 100);
+    final AtomicReference<Throwable> failure        = new AtomicReference<>();
+
+    Thread inserter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          storedMessages.insert(ADDRESS, MESSAGE);
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+
+    inserter.start();
+    Thread.sleep(100);
+
+    storedMessages.stop();
+    inserter.join();
+
+    assertThat(failure.get()).isNull();
+    verify(pipeline, times(1)).lpush(any(byte[].class), Matchers.<byte[]>anyVararg());
+    verify(pipeline, times(1)).sync();
+  }
+
+  @Test(timeout = 10000)
+  public void testInsertAfterStopIsDirect() throws Exception {
+    StoredMessages storedMessages = new StoredMessages(pool, 60000, 100);
+
+    storedMessages.stop();
+    storedMessages.insert(ADDRESS, MESSAGE);
+
+    verify(pipeline, times(1)).lpush(any(byte[].class), Matchers.<byte[]>anyVararg());
+    verify(pipeline, times(1)).sync();
+  }
+}
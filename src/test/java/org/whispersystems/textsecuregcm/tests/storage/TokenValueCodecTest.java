@@ -0,0 +1,54 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.storage.TokenValueCodec;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TokenValueCodecTest {
+
+  private static final byte[] TOKEN = Util.getContactToken("+14152222222");
+
+  private final TokenValueCodec binary = new TokenValueCodec(true);
+  private final TokenValueCodec json   = new TokenValueCodec(false);
+
+  @Test
+  public void testLocalRoundTrip() {
+    byte[] encoded = binary.encode(null, true);
+
+    assertThat(encoded.length).isEqualTo(1);
+
+    ClientContact contact = binary.decode(TOKEN, encoded);
+
+    assertThat(contact.getToken()).isEqualTo(TOKEN);
+    assertThat(contact.getRelay()).isNull();
+    assertThat(contact.isSupportsSms()).isTrue();
+  }
+
+  @Test
+  public void testRelayRoundTrip() {
+    ClientContact first  = binary.decode(TOKEN, binary.encode("somepeer", false));
+    ClientContact second = binary.decode(TOKEN, binary.encode("somepeer", false));
+
+    assertThat(first.getRelay()).isEqualTo("somepeer");
+    assertThat(first.isSupportsSms()).isFalse();
+    assertThat(second.getRelay()).isSameAs(first.getRelay());
+  }
+
+  @Test
+  public void testJsonCompatibility() {
+    assertThat(new String(json.encode(null, true))).isEqualTo("{\"s\":true}");
+
+    ClientContact legacy = binary.decode(TOKEN, "{\"r\":\"somepeer\",\"s\":true}".getBytes());
+
+    assertThat(legacy.getRelay()).isEqualTo("somepeer");
+    assertThat(legacy.isSupportsSms()).isTrue();
+
+    ClientContact fromBinary = json.decode(TOKEN, binary.encode("somepeer", true));
+
+    assertThat(fromBinary.getRelay()).isEqualTo("somepeer");
+    assertThat(fromBinary.isSupportsSms()).isTrue();
+  }
+}
@@ -0,0 +1,165 @@
+package org.whispersystems.textsecuregcm.tests.workers;
+
+import com.google.common.base.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.federation.FederatedClientManager;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager.BatchOperationHandle;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager.RebuildProgress;
+import org.whispersystems.textsecuregcm.workers.DirectoryUpdater;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class DirectoryUpdaterTest {
+
+  private final AccountsManager      accountsManager = mock(AccountsManager.class);
+  private final DirectoryManager     directory       = mock(DirectoryManager.class);
+  private final BatchOperationHandle handle          = mock(BatchOperationHandle.class);
+
+  private final DirectoryUpdater updater = new DirectoryUpdater(accountsManager, mock(FederatedClientManager.class),
+                                                                directory, 10, 2, 2, 5);
+
+  @Before
+  public void setup() {
+    when(directory.startBatchOperation(anyBoolean())).thenReturn(handle);
+    when(directory.getRebuildProgress()).thenReturn(Optional.<RebuildProgress>absent());
+    when(accountsManager.getInIdRange(anyLong(), anyLong())).thenReturn(new LinkedList<Account>());
+  }
+
+  @Test
+  public void testRebuildCoversEveryChunk() {
+    when(accountsManager.getMaxDirectorySequence()).thenReturn(42L);
+    when(accountsManager.getMaxId()).thenReturn(25L);
+
+    updater.updateFromLocalDatabase();
+
+    verify(directory).startRebuild(42L, 10);
+    verify(accountsManager).getInIdRange(0, 10);
+    verify(accountsManager).getInIdRange(10, 20);
+    verify(accountsManager).getInIdRange(20, 30);
+    verify(directory).setRebuildChunkComplete(0);
+    verify(directory).setRebuildChunkComplete(1);
+    verify(directory).setRebuildChunkComplete(2);
+    verify(directory).setSyncSequence(42L);
+    verify(directory).clearRebuild();
+  }
+
+  @Test
+  public void testRebuildResumesFromCompletedChunks() {
+    when(directory.getRebuildProgress()).thenReturn(Optional.of(new RebuildProgress(7, 10, new HashSet<>(Arrays.asList(0L, 2L)))));
+    when(accountsManager.getMaxId()).thenReturn(25L);
+
+    updater.updateFromLocalDatabase();
+
+    verify(directory, never()).startRebuild(anyLong(), anyInt());
+    verify(accountsManager, never()).getInIdRange(0, 10);
+    verify(accountsManager, never()).getInIdRange(20, 30);
+    verify(accountsManager).getInIdRange(10, 20);
+    verify(directory).setRebuildChunkComplete(1);
+    verify(directory).setSyncSequence(7L);
+    verify(directory).clearRebuild();
+  }
+
+  @Test
+  public void testRebuildRestartsWithDifferentChunkSize() {
+    when(directory.getRebuildProgress()).thenReturn(Optional.of(new RebuildProgress(7, 100, Collections.singleton(0L))));
+    when(accountsManager.getMaxDirectorySequence()).thenReturn(42L);
+    when(accountsManager.getMaxId()).thenReturn(5L);
+
+    updater.updateFromLocalDatabase();
+
+    verify(directory).startRebuild(42L, 10);
+    verify(accountsManager).getInIdRange(0, 10);
+    verify(directory).setSyncSequence(42L);
+  }
+
+  @Test
+  public void testRebuildFlushesPipeline() {
+    List<Account> accounts = new LinkedList<>();
+
+    for (int i=0;i<5;i++) {
+      Account account = mock(Account.class);
+      when(account.getNumber()).thenReturn("+1415555000" + i);
+      when(account.isActive()).thenReturn(true);
+      accounts.add(account);
+    }
+
+    when(accountsManager.getMaxId()).thenReturn(5L);
+    when(accountsManager.getInIdRange(0, 10)).thenReturn(accounts);
+
+    updater.updateFromLocalDatabase();
+
+    verify(directory, times(5)).add(eq(handle), any(ClientContact.class));
+    verify(directory, times(3)).startBatchOperation(false);
+    verify(directory, times(3)).stopBatchOperation(handle);
+    verify(directory).announceReload();
+  }
+
+  @Test
+  public void testIncrementalFinishesInterruptedRebuild() {
+    when(directory.getSyncSequence()).thenReturn(Optional.of(3L));
+    when(directory.getRebuildProgress()).thenReturn(Optional.of(new RebuildProgress(7, 10, new HashSet<Long>())));
+    when(accountsManager.getMaxId()).thenReturn(5L);
+
+    updater.updateChangesFromLocalDatabase();
+
+    verify(accountsManager, never()).getChangedSince(anyLong(), anyInt());
+    verify(directory).setSyncSequence(7L);
+  }
+
+  @Test
+  public void testIncrementalAppliesChangedAccounts() {
+    Account first  = mock(Account.class);
+    Account second = mock(Account.class);
+
+    when(first.getNumber()).thenReturn("+14151111111");
+    when(first.isActive()).thenReturn(true);
+    when(first.getDirectorySequence()).thenReturn(4L);
+    when(second.getNumber()).thenReturn("+14152222222");
+    when(second.isActive()).thenReturn(false);
+    when(second.getDirectorySequence()).thenReturn(9L);
+
+    when(directory.getSyncSequence()).thenReturn(Optional.of(8L));
+    when(accountsManager.getChangedSince(3L, 1000)).thenReturn(Arrays.asList(first, second));
+    when(accountsManager.getChangedSince(9L, 1000)).thenReturn(new LinkedList<Account>());
+
+    updater.updateChangesFromLocalDatabase();
+
+    verify(directory).add(eq(handle), any(ClientContact.class));
+    verify(directory).remove(handle, "+14152222222");
+    verify(directory).setSyncSequence(9L);
+    verify(directory).announceReload();
+  }
+
+  @Test
+  public void testIncrementalRescansLagWindow() {
+    Account late = mock(Account.class);
+
+    when(late.getNumber()).thenReturn("+14151111111");
+    when(late.isActive()).thenReturn(true);
+    when(late.getDirectorySequence()).thenReturn(6L);
+
+    when(directory.getSyncSequence()).thenReturn(Optional.of(8L));
+    when(accountsManager.getChangedSince(3L, 1000)).thenReturn(Arrays.asList(late));
+    when(accountsManager.getChangedSince(6L, 1000)).thenReturn(new LinkedList<Account>());
+
+    updater.updateChangesFromLocalDatabase();
+
+    verify(directory).add(eq(handle), any(ClientContact.class));
+    verify(directory, never()).setSyncSequence(anyLong());
+  }
+}